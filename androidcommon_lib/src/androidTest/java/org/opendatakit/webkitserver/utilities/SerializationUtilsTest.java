@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.webkitserver.utilities;
+
+import android.os.Bundle;
+import android.os.Parcelable;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerializationUtilsTest {
+
+  private static final String APP_NAME = "default";
+
+  @Test
+  public void testRoundTripScalars() throws IOException {
+    Bundle b = new Bundle();
+    b.putString("string", "value");
+    b.putBoolean("boolean", true);
+    b.putInt("int", 42);
+    b.putLong("long", 5000000000L);
+    b.putDouble("double", 2.5);
+    Bundle nested = new Bundle();
+    nested.putString("inner", "x");
+    b.putBundle("bundle", nested);
+
+    Bundle result = roundTrip(b);
+
+    assertEquals("value", result.getString("string"));
+    assertTrue(result.getBoolean("boolean"));
+    assertEquals(42, result.getInt("int"));
+    assertEquals(5000000000L, result.getLong("long"));
+    assertEquals(2.5, result.getDouble("double"), 0.0);
+    assertEquals("x", result.getBundle("bundle").getString("inner"));
+    assertEquals(b.keySet(), result.keySet());
+  }
+
+  @Test
+  public void testRoundTripArrays() throws IOException {
+    Bundle b = new Bundle();
+    b.putIntArray("ints", new int[] { 1, 2, 3 });
+    b.putLongArray("longs", new long[] { 5000000000L, 6000000000L });
+    b.putDoubleArray("doubles", new double[] { 1.5, 2.5 });
+    b.putBooleanArray("booleans", new boolean[] { true, false, true });
+    b.putStringArray("strings", new String[] { "a", null, "c" });
+    Bundle element = new Bundle();
+    element.putInt("n", 7);
+    b.putParcelableArray("bundles", new Bundle[] { element, null });
+
+    Bundle result = roundTrip(b);
+
+    assertArrayEquals(new int[] { 1, 2, 3 }, result.getIntArray("ints"));
+    assertArrayEquals(new long[] { 5000000000L, 6000000000L }, result.getLongArray("longs"));
+    assertArrayEquals(new double[] { 1.5, 2.5 }, result.getDoubleArray("doubles"), 0.0);
+    assertArrayEquals(new boolean[] { true, false, true }, result.getBooleanArray("booleans"));
+    assertArrayEquals(new String[] { "a", null, "c" }, result.getStringArray("strings"));
+    Parcelable[] bundles = result.getParcelableArray("bundles");
+    assertEquals(2, bundles.length);
+    assertEquals(7, ((Bundle) bundles[0]).getInt("n"));
+    assertNull(bundles[1]);
+  }
+
+  @Test
+  public void testLargeArrayGrowsBuffer() throws IOException {
+    int[] values = new int[100];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = i * i;
+    }
+    Bundle b = new Bundle();
+    b.putIntArray("ints", values);
+
+    assertArrayEquals(values, roundTrip(b).getIntArray("ints"));
+  }
+
+  @Test
+  public void testLeadingNullsAndEmptyArrays() throws IOException {
+    Bundle result = SerializationUtils.convertToBundle(
+        "{\"ints\":[null,2],\"doubles\":[null,1.5],\"empty\":[],\"nulls\":[null,null]}", null);
+
+    assertArrayEquals(new int[] { 0, 2 }, result.getIntArray("ints"));
+    double[] doubles = result.getDoubleArray("doubles");
+    assertTrue(Double.isNaN(doubles[0]));
+    assertEquals(1.5, doubles[1], 0.0);
+    assertFalse(result.containsKey("empty"));
+    assertFalse(result.containsKey("nulls"));
+  }
+
+  @Test
+  public void testMatchesJSONObjectConversion() throws Exception {
+    String json = "{\"s\":\"v\",\"i\":3,\"l\":5000000000,\"d\":0.5,\"b\":false," +
+        "\"ia\":[1,2],\"sa\":[\"x\",null],\"o\":{\"k\":\"w\"}}";
+
+    Bundle streamed = SerializationUtils.convertToBundle(json, null);
+    Bundle parsed = SerializationUtils.convertToBundle(new JSONObject(json), null);
+
+    assertEquals(parsed.keySet(), streamed.keySet());
+    assertEquals(parsed.getString("s"), streamed.getString("s"));
+    assertEquals(parsed.getInt("i"), streamed.getInt("i"));
+    assertEquals(parsed.getLong("l"), streamed.getLong("l"));
+    assertEquals(parsed.getDouble("d"), streamed.getDouble("d"), 0.0);
+    assertEquals(parsed.getBoolean("b"), streamed.getBoolean("b"));
+    assertArrayEquals(parsed.getIntArray("ia"), streamed.getIntArray("ia"));
+    assertArrayEquals(parsed.getStringArray("sa"), streamed.getStringArray("sa"));
+    assertEquals(parsed.getBundle("o").getString("k"), streamed.getBundle("o").getString("k"));
+  }
+
+  @Test
+  public void testExpanderAppliedToStrings() throws IOException {
+    Bundle result = SerializationUtils.convertToBundle("{\"s\":\"v\"}",
+        new SerializationUtils.MacroStringExpander() {
+          @Override
+          public String expandString(String value) {
+            return value + "!";
+          }
+        });
+
+    assertEquals("v!", result.getString("s"));
+  }
+
+  @Test
+  public void testRejectsObjectInPrimitiveArray() {
+    assertRejected("{\"ints\":[1,{\"a\":2},3]}");
+    assertRejected("{\"booleans\":[true,[false]]}");
+    assertRejected("{\"doubles\":[1.5,\"x\"]}");
+    assertRejected("{\"strings\":[\"a\",{\"b\":1}]}");
+  }
+
+  @Test
+  public void testRejectsNestedArrays() {
+    assertRejected("{\"arrays\":[[1,2]]}");
+  }
+
+  @Test
+  public void testRejectsNonObject() {
+    assertRejected("[1,2]");
+  }
+
+  private static Bundle roundTrip(Bundle b) throws IOException {
+    String json = SerializationUtils.convertFromBundleToString(APP_NAME, b);
+    return SerializationUtils.convertToBundle(json, null);
+  }
+
+  private static void assertRejected(String json) {
+    try {
+      SerializationUtils.convertToBundle(json, null);
+      fail("expected an IOException for " + json);
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
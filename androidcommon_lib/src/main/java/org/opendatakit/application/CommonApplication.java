@@ -30,6 +30,7 @@ import android.util.Log;
 import android.webkit.WebView;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.consts.WebkitServerConsts;
+import org.opendatakit.data.utilities.UserContext;
 import org.opendatakit.database.service.IDbInterface;
 import org.opendatakit.database.service.InternalUserDbInterfaceAidlWrapperImpl;
 import org.opendatakit.database.service.UserDbInterface;
@@ -181,6 +182,8 @@ public abstract class CommonApplication extends ToolAwareApplication implements
             databaseService = null;
           }
         }
+        // roles and users may have changed while we were not connected
+        UserContext.invalidate();
         application.triggerDatabaseEvent(false);
       }
     }
@@ -219,6 +222,7 @@ public abstract class CommonApplication extends ToolAwareApplication implements
           }
           databaseService = null;
           tmpDb = databaseServiceConnection;
+          UserContext.invalidate();
           databaseServiceConnection = null;
         }
         try {
@@ -15,15 +15,30 @@
  */
 package org.opendatakit.data;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Class for interpreting the result of a test of the rule group. When this
  * is returned you are able to distinguish via the didMatch method
  * whether or not the rule should apply.
+ * <p>
+ * ColorGuides are immutable. Use {@link #getInstance(int, int)} to obtain the
+ * shared instance for a (foreground, background) pair rather than allocating
+ * a new one for every matched row.
+ *
  * @author sudar.sam@gmail.com
  *
  */
 public final class ColorGuide {
 
+  /**
+   * Interned instances keyed by the packed (foreground, background) pair.
+   * The number of distinct pairs is bounded by the color rules defined
+   * across the tables of the app, so this never grows large.
+   */
+  private static final ConcurrentHashMap<Long, ColorGuide> sInterned =
+      new ConcurrentHashMap<Long, ColorGuide>();
+
   private final int mForeground;
   private final int mBackground;
 
@@ -32,6 +47,26 @@ public final class ColorGuide {
     this.mBackground = background;
   }
 
+  /**
+   * Return the shared ColorGuide for this foreground and background color.
+   *
+   * @param foreground
+   * @param background
+   * @return the interned ColorGuide
+   */
+  public static ColorGuide getInstance(int foreground, int background) {
+    Long key = (((long) foreground) << 32) | (background & 0xffffffffL);
+    ColorGuide cg = sInterned.get(key);
+    if (cg == null) {
+      ColorGuide created = new ColorGuide(foreground, background);
+      cg = sInterned.putIfAbsent(key, created);
+      if (cg == null) {
+        cg = created;
+      }
+    }
+    return cg;
+  }
+
   public final int getForeground() {
     return mForeground;
   }
@@ -39,4 +74,21 @@ public final class ColorGuide {
   public final int getBackground() {
     return mBackground;
   }
-}
\ No newline at end of file
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ColorGuide)) {
+      return false;
+    }
+    ColorGuide that = (ColorGuide) o;
+    return mForeground == that.mForeground && mBackground == that.mBackground;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * mForeground + mBackground;
+  }
+}
@@ -1,9 +1,12 @@
 package org.opendatakit.data;
 
+import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.database.data.UserTable;
+import org.opendatakit.provider.DataTableColumns;
 
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -70,5 +73,67 @@ public class ColorGuideGroup {
     return cg;
   }
 
+  /**
+   * Recompute the colors for just the rows in the given table. Intended to be
+   * called with the UserTable returned from an updateRow or addRow so that the
+   * whole table does not need to be re-queried and recolored after each save.
+   * <p>
+   * NOTE: getColorGuideForRowIndex continues to refer to the row indexes of the
+   * UserTable this group was constructed with. Use getColorGuideForRowId for
+   * rows that have been added incrementally.
+   *
+   * @param changedRows the table holding the updated or inserted rows
+   */
+  public void updateColorGuides(UserTable changedRows) {
+    if (mCRG == null || changedRows == null) {
+      return;
+    }
+
+    for (int i = 0; i < changedRows.getNumberOfRows(); i++) {
+      ColorGuide tcg = mCRG.getColorGuide(changedRows.getColumnDefinitions(),
+          changedRows.getRowAtIndex(i));
+      putColorGuide(changedRows.getRowId(i), tcg);
+    }
+  }
+
+  /**
+   * Recompute the colors for just the given rows.
+   *
+   * @param orderedDefns the column definitions of the table the rows belong to
+   * @param changedRows  the updated or inserted rows
+   */
+  public void updateColorGuides(OrderedColumns orderedDefns, List<TypedRow> changedRows) {
+    if (mCRG == null || changedRows == null) {
+      return;
+    }
+
+    for (TypedRow row : changedRows) {
+      String rowId = row.getDataType(DataTableColumns.ID, String.class);
+      if (rowId == null) {
+        continue;
+      }
+      putColorGuide(rowId, mCRG.getColorGuide(orderedDefns, row));
+    }
+  }
+
+  /**
+   * Drop the color for a row that has been deleted.
+   *
+   * @param rowId
+   */
+  public void removeColorGuide(String rowId) {
+    if (mRowIdToColors != null) {
+      mRowIdToColors.remove(rowId);
+    }
+  }
+
+  private void putColorGuide(String rowId, ColorGuide tcg) {
+    if (mRowIdToColors == null) {
+      return;
+    }
+    // the constructor records null for rows that match no rule; do the same here
+    mRowIdToColors.put(rowId, tcg);
+  }
+
 }
 
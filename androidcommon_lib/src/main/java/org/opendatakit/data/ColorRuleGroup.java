@@ -360,7 +360,7 @@ public class ColorRuleGroup {
         type = elementType.getDataType();
       }
       if (cr.checkMatch(type, row)) {
-        return new ColorGuide(cr.getForeground(), cr.getBackground());
+        return ColorGuide.getInstance(cr.getForeground(), cr.getBackground());
       }
     }
     return null;
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.StaticStateManipulator;
+import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous variants of the TableUtil and ColumnUtil lookups.
+ * <p>
+ * Each request opens its own database handle on a small, bounded pool of
+ * background threads and returns a {@link Future}. Independent lookups
+ * therefore proceed in parallel and the calling (UI) thread never blocks on
+ * the database service unless it calls {@link Future#get()}. Every lookup also
+ * has an overload taking a {@link Callback}, which is invoked on the pool
+ * thread once the lookup completes, so the caller need not wait at all.
+ * <p>
+ * A ServicesAvailabilityException thrown by the lookup is reported as the
+ * cause of the ExecutionException thrown by {@link Future#get()}, and passed
+ * to {@link Callback#onFailure(Throwable)}.
+ * <p>
+ * At most MAX_QUEUED_REQUESTS lookups wait for a thread. A lookup submitted
+ * beyond that is rejected: it is not run, and its future completes at once
+ * with a RejectedExecutionException as the cause (reported to the callback
+ * like any other failure). The submitting thread never runs the lookup
+ * itself and is never blocked.
+ */
+public class AsyncTableUtil {
+
+  private static final String TAG = AsyncTableUtil.class.getSimpleName();
+
+  private static final int CORE_POOL_SIZE = 2;
+  private static final int MAX_POOL_SIZE = 4;
+  private static final int MAX_QUEUED_REQUESTS = 64;
+  private static final long KEEP_ALIVE_SECONDS = 30L;
+
+  private static AsyncTableUtil asyncTableUtil = new AsyncTableUtil();
+
+  static {
+    // register a state-reset manipulator for 'asyncTableUtil' field.
+    StaticStateManipulator.get().register(new IStaticFieldManipulator() {
+
+      @Override
+      public void reset() {
+        asyncTableUtil = new AsyncTableUtil();
+      }
+
+    });
+  }
+
+  public static AsyncTableUtil get() {
+    return asyncTableUtil;
+  }
+
+  /**
+   * For mocking -- supply a mocked object.
+   *
+   * @param util
+   */
+  public static void set(AsyncTableUtil util) {
+    asyncTableUtil = util;
+  }
+
+  /**
+   * A database interaction to be run on a background thread
+   * against an open database handle.
+   *
+   * @param <T> the type of the result
+   */
+  public interface DbCallable<T> {
+    T call(UserDbInterface dbInterface, DbHandle db) throws ServicesAvailabilityException;
+  }
+
+  /**
+   * Receives the outcome of a lookup. Invoked on the background thread that
+   * completed the lookup; post to the UI thread if the result updates views.
+   *
+   * @param <T> the type of the result
+   */
+  public interface Callback<T> {
+    void onSuccess(T result);
+
+    /**
+     * @param t the exception thrown by the lookup, a RejectedExecutionException
+     *          if the lookup could not be queued, or a CancellationException
+     */
+    void onFailure(Throwable t);
+  }
+
+  /**
+   * A lookup that reports its outcome to an optional callback when it
+   * completes, and that fails rather than runs when it is rejected.
+   */
+  private static class DbTask<T> extends FutureTask<T> {
+    private final String appName;
+    private final Callback<T> callback;
+
+    DbTask(String appName, Callable<T> callable, Callback<T> callback) {
+      super(callable);
+      this.appName = appName;
+      this.callback = callback;
+    }
+
+    void reject() {
+      setException(new RejectedExecutionException(
+          TAG + ": more than " + MAX_QUEUED_REQUESTS + " queued requests"));
+    }
+
+    @Override
+    protected void done() {
+      if (callback == null) {
+        return;
+      }
+      try {
+        T result;
+        try {
+          result = get();
+        } catch (ExecutionException e) {
+          callback.onFailure(e.getCause());
+          return;
+        } catch (CancellationException e) {
+          callback.onFailure(e);
+          return;
+        } catch (InterruptedException e) {
+          // cannot happen -- the task is done
+          callback.onFailure(e);
+          return;
+        }
+        callback.onSuccess(result);
+      } catch (RuntimeException e) {
+        // do not let a failing callback take down the pool thread
+        WebLogger.getLogger(appName).e(TAG, "callback threw an exception");
+        WebLogger.getLogger(appName).printStackTrace(e);
+      }
+    }
+  }
+
+  /**
+   * The column definitions and settings needed to open a spreadsheet view.
+   */
+  public static class SpreadsheetSettings {
+    public final TableUtil.TableColumns tableColumns;
+    public final TableSettings tableSettings;
+    public final ArrayList<String> columnOrder;
+    public final Map<String, Integer> columnWidths;
+
+    SpreadsheetSettings(TableUtil.TableColumns tableColumns, TableSettings tableSettings) {
+      this.tableColumns = tableColumns;
+      this.tableSettings = tableSettings;
+      this.columnOrder = tableSettings.getColumnOrder(tableColumns.orderedDefns);
+      this.columnWidths = tableSettings.getColumnWidths(tableColumns.orderedDefns);
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+
+  protected AsyncTableUtil() {
+    executor = new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger(1);
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new RejectedExecutionHandler() {
+          @Override
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            ((DbTask<?>) r).reject();
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Run the callable on a background thread with its own database handle.
+   *
+   * @param dbInterface
+   * @param appName
+   * @param callable
+   * @param <T>
+   * @return future holding the result of the callable
+   */
+  public <T> Future<T> submit(UserDbInterface dbInterface, String appName,
+      DbCallable<T> callable) {
+    return submit(dbInterface, appName, callable, null);
+  }
+
+  /**
+   * Run the callable on a background thread with its own database handle and
+   * report its outcome to the callback.
+   *
+   * @param dbInterface
+   * @param appName
+   * @param callable
+   * @param callback  may be null
+   * @param <T>
+   * @return future holding the result of the callable
+   */
+  public <T> Future<T> submit(final UserDbInterface dbInterface, final String appName,
+      final DbCallable<T> callable, Callback<T> callback) {
+    DbTask<T> task = new DbTask<T>(appName, new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        DbHandle db = null;
+        try {
+          db = dbInterface.openDatabase(appName);
+
+          return callable.call(dbInterface, db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          throw e;
+        } finally {
+          if ( db != null ) {
+            try {
+              dbInterface.closeDatabase(appName, db);
+            } catch (ServicesAvailabilityException e) {
+              WebLogger.getLogger(appName).printStackTrace(e);
+              throw e;
+            }
+          }
+        }
+      }
+    }, callback);
+    executor.execute(task);
+    return task;
+  }
+
+  public Future<TableSettings> getTableSettings(UserDbInterface dbInterface,
+      String appName, String tableId) {
+    return getTableSettings(dbInterface, appName, tableId, null);
+  }
+
+  public Future<TableSettings> getTableSettings(final UserDbInterface dbInterface,
+      final String appName, final String tableId,
+      Callback<TableSettings> callback) {
+    return submit(dbInterface, appName, new DbCallable<TableSettings>() {
+      @Override
+      public TableSettings call(UserDbInterface dbInterface, DbHandle db)
+          throws ServicesAvailabilityException {
+        return TableUtil.get().getTableSettings(dbInterface, appName, db, tableId);
+      }
+    }, callback);
+  }
+
+  public Future<TableUtil.TableColumns> getTableColumns(String userSelectedDefaultLocale,
+      UserDbInterface dbInterface, String appName, String tableId) {
+    return getTableColumns(userSelectedDefaultLocale, dbInterface, appName, tableId, null);
+  }
+
+  public Future<TableUtil.TableColumns> getTableColumns(final String userSelectedDefaultLocale,
+      final UserDbInterface dbInterface, final String appName, final String tableId,
+      Callback<TableUtil.TableColumns> callback) {
+    return submit(dbInterface, appName, new DbCallable<TableUtil.TableColumns>() {
+      @Override
+      public TableUtil.TableColumns call(UserDbInterface dbInterface, DbHandle db)
+          throws ServicesAvailabilityException {
+        return TableUtil.get().getTableColumns(userSelectedDefaultLocale, dbInterface, appName, db,
+            tableId);
+      }
+    }, callback);
+  }
+
+  public Future<ArrayList<String>> getColumnOrder(UserDbInterface dbInterface,
+      String appName, String tableId, OrderedColumns columns) {
+    return getColumnOrder(dbInterface, appName, tableId, columns, null);
+  }
+
+  public Future<ArrayList<String>> getColumnOrder(final UserDbInterface dbInterface,
+      final String appName, final String tableId, final OrderedColumns columns,
+      Callback<ArrayList<String>> callback) {
+    return submit(dbInterface, appName, new DbCallable<ArrayList<String>>() {
+      @Override
+      public ArrayList<String> call(UserDbInterface dbInterface, DbHandle db)
+          throws ServicesAvailabilityException {
+        return TableUtil.get().getColumnOrder(dbInterface, appName, db, tableId, columns);
+      }
+    }, callback);
+  }
+
+  public Future<Map<String, Integer>> getColumnWidths(UserDbInterface dbInterface,
+      String appName, String tableId, OrderedColumns columns) {
+    return getColumnWidths(dbInterface, appName, tableId, columns, null);
+  }
+
+  public Future<Map<String, Integer>> getColumnWidths(final UserDbInterface dbInterface,
+      final String appName, final String tableId, final OrderedColumns columns,
+      Callback<Map<String, Integer>> callback) {
+    return submit(dbInterface, appName, new DbCallable<Map<String, Integer>>() {
+      @Override
+      public Map<String, Integer> call(UserDbInterface dbInterface, DbHandle db)
+          throws ServicesAvailabilityException {
+        return ColumnUtil.get().getColumnWidths(dbInterface, appName, db, tableId, columns);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> canAddRowToTable(UserDbInterface dbInterface,
+      String appName, String tableId) {
+    return canAddRowToTable(dbInterface, appName, tableId, null);
+  }
+
+  public Future<Boolean> canAddRowToTable(final UserDbInterface dbInterface,
+      final String appName, final String tableId,
+      Callback<Boolean> callback) {
+    return submit(dbInterface, appName, new DbCallable<Boolean>() {
+      @Override
+      public Boolean call(UserDbInterface dbInterface, DbHandle db)
+          throws ServicesAvailabilityException {
+        return TableUtil.get().canAddRowToTable(dbInterface, appName, db, tableId);
+      }
+    }, callback);
+  }
+
+  /**
+   * Retrieve the column definitions and the table settings in parallel and
+   * combine them into the column order and widths of the spreadsheet.
+   *
+   * @param userSelectedDefaultLocale
+   * @param dbInterface
+   * @param appName
+   * @param tableId
+   * @return future holding the spreadsheet settings
+   */
+  public Future<SpreadsheetSettings> getSpreadsheetSettings(String userSelectedDefaultLocale,
+      UserDbInterface dbInterface, String appName, String tableId) {
+    return getSpreadsheetSettings(userSelectedDefaultLocale, dbInterface, appName, tableId, null);
+  }
+
+  /**
+   * Retrieve the column definitions and the table settings in parallel and
+   * combine them into the column order and widths of the spreadsheet.
+   * <p>
+   * Neither the caller nor a pool thread waits for the two lookups: the
+   * combination runs on the pool thread that completes the second of them.
+   *
+   * @param userSelectedDefaultLocale
+   * @param dbInterface
+   * @param appName
+   * @param tableId
+   * @param callback                  may be null
+   * @return future holding the spreadsheet settings
+   */
+  public Future<SpreadsheetSettings> getSpreadsheetSettings(String userSelectedDefaultLocale,
+      UserDbInterface dbInterface, String appName, String tableId,
+      Callback<SpreadsheetSettings> callback) {
+    SpreadsheetSettingsCombiner combiner = new SpreadsheetSettingsCombiner();
+    SpreadsheetSettingsTask task = new SpreadsheetSettingsTask(appName, combiner, callback);
+    combiner.columnsFuture = getTableColumns(userSelectedDefaultLocale, dbInterface, appName,
+        tableId, task.<TableUtil.TableColumns>partCallback());
+    combiner.settingsFuture = getTableSettings(dbInterface, appName, tableId,
+        task.<TableSettings>partCallback());
+    task.partDone();
+    return task;
+  }
+
+  /**
+   * Builds the spreadsheet settings from the two completed lookups.
+   */
+  private static class SpreadsheetSettingsCombiner implements Callable<SpreadsheetSettings> {
+    volatile Future<TableUtil.TableColumns> columnsFuture;
+    volatile Future<TableSettings> settingsFuture;
+
+    @Override
+    public SpreadsheetSettings call() throws Exception {
+      // both futures are done; get() does not block
+      try {
+        return new SpreadsheetSettings(columnsFuture.get(), settingsFuture.get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        throw (cause instanceof Exception) ? (Exception) cause : e;
+      }
+    }
+  }
+
+  /**
+   * Runs the combiner once both lookups and the submitting thread are done.
+   */
+  private static class SpreadsheetSettingsTask extends DbTask<SpreadsheetSettings> {
+    private final SpreadsheetSettingsCombiner combiner;
+    // the two lookups plus the submitting thread
+    private final AtomicInteger remaining = new AtomicInteger(3);
+
+    SpreadsheetSettingsTask(String appName, SpreadsheetSettingsCombiner combiner,
+        Callback<SpreadsheetSettings> callback) {
+      super(appName, combiner, callback);
+      this.combiner = combiner;
+    }
+
+    <T> Callback<T> partCallback() {
+      return new Callback<T>() {
+        @Override
+        public void onSuccess(T result) {
+          partDone();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          partDone();
+        }
+      };
+    }
+
+    void partDone() {
+      if (remaining.decrementAndGet() == 0) {
+        run();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean outcome = super.cancel(mayInterruptIfRunning);
+      Future<TableUtil.TableColumns> columns = combiner.columnsFuture;
+      if (columns != null) {
+        columns.cancel(mayInterruptIfRunning);
+      }
+      Future<TableSettings> settings = combiner.settingsFuture;
+      if (settings != null) {
+        settings.cancel(mayInterruptIfRunning);
+      }
+      return outcome;
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+import com.fasterxml.jackson.databind.type.CollectionType;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.opendatakit.utilities.StaticStateManipulator;
+import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of choice lists, keyed by appName and choiceListId.
+ * <p>
+ * The choiceListId is derived from the content of the choice list, so a
+ * given id always refers to the same JSON and entries never go stale. The
+ * cache is bounded and evicts the least-recently-used choice list. A missing
+ * or empty choice list is not cached, so it is looked up again on the next
+ * request.
+ */
+public class ChoiceListCache {
+
+  private static final String TAG = ChoiceListCache.class.getSimpleName();
+
+  /**
+   * Maximum number of choice lists held in the cache.
+   */
+  static final int MAX_ENTRIES = 64;
+
+  private static ChoiceListCache choiceListCache = new ChoiceListCache();
+
+  static {
+    // register a state-reset manipulator for 'choiceListCache' field.
+    StaticStateManipulator.get().register(new IStaticFieldManipulator() {
+
+      @Override
+      public void reset() {
+        choiceListCache = new ChoiceListCache();
+      }
+
+    });
+  }
+
+  public static ChoiceListCache get() {
+    return choiceListCache;
+  }
+
+  /**
+   * For mocking -- supply a mocked object.
+   *
+   * @param cache
+   */
+  public static void set(ChoiceListCache cache) {
+    choiceListCache = cache;
+  }
+
+  private static class ChoiceList {
+    final String json;
+    List<Map<String, Object>> parsed;
+
+    ChoiceList(String json) {
+      this.json = json;
+    }
+  }
+
+  private final LinkedHashMap<String, ChoiceList> cache =
+      new LinkedHashMap<String, ChoiceList>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChoiceList> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  protected ChoiceListCache() {}
+
+  private ChoiceList getChoiceList(UserDbInterface dbInterface, String appName, DbHandle db,
+      String choiceListId) throws ServicesAvailabilityException {
+    String key = appName + "/" + choiceListId;
+    synchronized (cache) {
+      ChoiceList cl = cache.get(key);
+      if (cl != null) {
+        return cl;
+      }
+    }
+    String choiceListJSON = dbInterface.getChoiceList(appName, db, choiceListId);
+    ChoiceList cl = new ChoiceList(choiceListJSON);
+    if (isEmpty(choiceListJSON)) {
+      // the choice list may not have been written yet; do not remember its absence
+      return cl;
+    }
+    synchronized (cache) {
+      cache.put(key, cl);
+    }
+    return cl;
+  }
+
+  /**
+   * Record the JSON for a choice list that was just written to the database.
+   *
+   * @param appName
+   * @param choiceListId
+   * @param choiceListJSON
+   */
+  public void put(String appName, String choiceListId, String choiceListJSON) {
+    if (choiceListId == null || isEmpty(choiceListJSON)) {
+      return;
+    }
+    synchronized (cache) {
+      cache.put(appName + "/" + choiceListId, new ChoiceList(choiceListJSON));
+    }
+  }
+
+  /**
+   * Get the JSON serialization of the choice list.
+   *
+   * @param dbInterface
+   * @param appName
+   * @param db
+   * @param choiceListId
+   * @return the choice list JSON, or null if there is none.
+   * @throws ServicesAvailabilityException
+   */
+  public String getChoiceListJSON(UserDbInterface dbInterface, String appName, DbHandle db,
+      String choiceListId) throws ServicesAvailabilityException {
+    return getChoiceList(dbInterface, appName, db, choiceListId).json;
+  }
+
+  /**
+   * Get the parsed choice list: an array of objects holding the choice value
+   * and the language-to-displayName translation maps. The JSON is parsed only
+   * once per choiceListId; each call returns a deep copy of that parse, so the
+   * caller may freely modify the list, its entries and their nested maps.
+   *
+   * @param dbInterface
+   * @param appName
+   * @param db
+   * @param choiceListId
+   * @return the choice list, or an empty list if there is none or it cannot be parsed.
+   * @throws ServicesAvailabilityException
+   */
+  public ArrayList<Map<String, Object>> getParsedChoiceList(UserDbInterface dbInterface,
+      String appName, DbHandle db, String choiceListId) throws ServicesAvailabilityException {
+    ChoiceList cl = getChoiceList(dbInterface, appName, db, choiceListId);
+    synchronized (cl) {
+      if (cl.parsed == null) {
+        cl.parsed = parse(appName, cl.json);
+      }
+    }
+    ArrayList<Map<String, Object>> choices = new ArrayList<Map<String, Object>>(cl.parsed.size());
+    for (Map<String, Object> choice : cl.parsed) {
+      choices.add(copyMap(choice));
+    }
+    return choices;
+  }
+
+  private static boolean isEmpty(String choiceListJSON) {
+    return choiceListJSON == null || choiceListJSON.trim().length() == 0;
+  }
+
+  private static Map<String, Object> copyMap(Map<String, Object> map) {
+    Map<String, Object> copy = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      copy.put(entry.getKey(), copyValue(entry.getValue()));
+    }
+    return copy;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object copyValue(Object value) {
+    if (value instanceof Map) {
+      return copyMap((Map<String, Object>) value);
+    }
+    if (value instanceof List) {
+      List<Object> list = (List<Object>) value;
+      ArrayList<Object> copy = new ArrayList<Object>(list.size());
+      for (Object item : list) {
+        copy.add(copyValue(item));
+      }
+      return copy;
+    }
+    // strings, numbers and booleans are immutable
+    return value;
+  }
+
+  private static List<Map<String, Object>> parse(String appName, String choiceListJSON) {
+    if (isEmpty(choiceListJSON)) {
+      return Collections.emptyList();
+    }
+    CollectionType javaType =
+        ODKFileUtils.mapper.getTypeFactory().constructCollectionType(ArrayList.class, Map.class);
+    ArrayList<Map> result = null;
+    try {
+      result = ODKFileUtils.mapper.readValue(choiceListJSON, javaType);
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG,
+          "getParsedChoiceList: problem parsing json list entry from the kvs");
+      WebLogger.getLogger(appName).printStackTrace(e);
+    }
+    if (result == null) {
+      return Collections.emptyList();
+    }
+
+    ArrayList<Map<String, Object>> choices = new ArrayList<Map<String, Object>>();
+    for (Map m : result) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> tm = (Map<String, Object>) m;
+      choices.add(tm);
+    }
+    // the parsed list is never handed out; callers receive copies of it
+    return Collections.unmodifiableList(choices);
+  }
+}
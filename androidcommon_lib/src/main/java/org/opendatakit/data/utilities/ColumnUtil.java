@@ -18,7 +18,6 @@ package org.opendatakit.data.utilities;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.type.CollectionType;
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
 import org.opendatakit.data.JoinColumn;
@@ -26,6 +25,7 @@ import org.opendatakit.database.LocalKeyValueStoreConstants;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TableMetaDataEntries;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.database.utilities.KeyValueStoreUtils;
@@ -39,6 +39,7 @@ import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -72,6 +73,26 @@ public class ColumnUtil {
     columnUtil = util;
   }
 
+  /**
+   * Localized display names of all the columns of a table for one locale,
+   * tied to the metadata revision they were computed from.
+   */
+  private static class LocalizedDisplayNames {
+    final String revId;
+    final Map<String, String> displayNames;
+
+    LocalizedDisplayNames(String revId, Map<String, String> displayNames) {
+      this.revId = revId;
+      this.displayNames = displayNames;
+    }
+  }
+
+  /**
+   * appName + tableId + locale => localized display names for that table
+   */
+  private final Map<String, LocalizedDisplayNames> displayNamesCache =
+      new HashMap<String, LocalizedDisplayNames>();
+
   protected ColumnUtil() {}
 
   /**
@@ -99,6 +120,72 @@ public class ColumnUtil {
     return displayName;
   }
 
+  /**
+   * Get the localized display names of the given columns.
+   *
+   * All of the column display names are retrieved with a single database call.
+   * The localized names are cached per table and locale and are reused until the
+   * metadata revision of the table changes.
+   *
+   * @param userSelectedDefaultLocale
+   * @param dbInterface
+   * @param appName
+   * @param db
+   * @param tableId
+   * @param elementKeys
+   * @return map of elementKey to localized display name for each of the elementKeys
+   * @throws ServicesAvailabilityException
+   */
+  public Map<String, String> getLocalizedDisplayNames(String userSelectedDefaultLocale,
+      UserDbInterface dbInterface, String appName, DbHandle db, String tableId,
+      Collection<String> elementKeys) throws ServicesAvailabilityException {
+
+    String cacheKey = appName + "/" + tableId + "/" + userSelectedDefaultLocale;
+    LocalizedDisplayNames cached;
+    synchronized (displayNamesCache) {
+      cached = displayNamesCache.get(cacheKey);
+    }
+
+    TableMetaDataEntries metaDataEntries = dbInterface.getTableMetadata(appName, db, tableId,
+        KeyValueStoreConstants.PARTITION_COLUMN, null, KeyValueStoreConstants.COLUMN_DISPLAY_NAME,
+        (cached == null) ? null : cached.revId);
+
+    Map<String, String> localizedNames;
+    if ( cached != null && cached.revId != null &&
+        cached.revId.equals(metaDataEntries.getRevId()) ) {
+      localizedNames = cached.displayNames;
+    } else {
+      localizedNames = new HashMap<String, String>();
+      for ( KeyValueStoreEntry entry : metaDataEntries.getEntries() ) {
+        String jsonDisplayName = KeyValueStoreUtils.getObject(entry);
+        if ( jsonDisplayName == null ) {
+          jsonDisplayName = NameUtil.normalizeDisplayName(
+              NameUtil.constructSimpleDisplayName(entry.aspect));
+        }
+        localizedNames.put(entry.aspect, LocalizationUtils.getLocalizedDisplayName(appName,
+            tableId, userSelectedDefaultLocale, jsonDisplayName));
+      }
+      synchronized (displayNamesCache) {
+        displayNamesCache.put(cacheKey,
+            new LocalizedDisplayNames(metaDataEntries.getRevId(), localizedNames));
+      }
+    }
+
+    HashMap<String, String> result = new HashMap<String, String>();
+    for ( String elementKey : elementKeys ) {
+      String displayName = localizedNames.get(elementKey);
+      if ( displayName == null ) {
+        // default to the column elementKey
+        String jsonDisplayName = NameUtil.normalizeDisplayName(
+            NameUtil.constructSimpleDisplayName(elementKey));
+        displayName = LocalizationUtils.getLocalizedDisplayName(appName, tableId,
+            userSelectedDefaultLocale, jsonDisplayName);
+      }
+      result.put(elementKey, displayName);
+    }
+    return result;
+  }
+
   public String getRawDisplayName(UserDbInterface dbInterface, String appName, DbHandle db, String tableId, String elementKey) throws ServicesAvailabilityException {
 
     List<KeyValueStoreEntry> displayNameList =
@@ -133,43 +220,10 @@ public class ColumnUtil {
       return new ArrayList<Map<String,Object>>();
     }
     /*
-     * Use that to get the choiceListJSON
+     * Use that to get the parsed choice list (cached across calls and columns)
+     * holding the choice value and the language-to-displayName translation maps
      */
-    String choiceListJSON = dbInterface.getChoiceList(appName, db, choiceListId);
-    if (choiceListJSON == null || choiceListJSON.trim().length() == 0) {
-      return new ArrayList<Map<String,Object>>();
-    }
-    // and transform the JSON into an array of objects holding the
-    // choice value and the language-to-displayName translation maps
-    CollectionType javaType =
-        ODKFileUtils.mapper.getTypeFactory().constructCollectionType(ArrayList.class, Map.class);
-    ArrayList<Map> result = null;
-    try {
-        result = ODKFileUtils.mapper.readValue(choiceListJSON, javaType);
-    } catch (JsonParseException e) {
-      WebLogger.getLogger(appName).e("ColumnUtil",
-          "getDisplayChoicesList: problem parsing json list entry from the kvs");
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (JsonMappingException e) {
-      WebLogger.getLogger(appName).e("ColumnUtil",
-          "getDisplayChoicesList: problem mapping json list entry from the kvs");
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (IOException e) {
-      WebLogger.getLogger(appName).e("ColumnUtil",
-          "getDisplayChoicesList: i/o problem with json for list entry from the kvs");
-      WebLogger.getLogger(appName).printStackTrace(e);
-    }
-    if(result == null) {
-      return new ArrayList<Map<String,Object>>();
-    }
-    
-    ArrayList<Map<String,Object>> jsonDisplayChoices = new ArrayList<Map<String,Object>>();
-    for ( Map m : result) {
-      @SuppressWarnings("unchecked")
-      Map<String,Object> tm = (Map<String,Object>) m;
-      jsonDisplayChoices.add(tm);
-    }
-    return jsonDisplayChoices;
+    return ChoiceListCache.get().getParsedChoiceList(dbInterface, appName, db, choiceListId);
   }
 
   public void setDisplayChoicesList(UserDbInterface dbInterface, String appName, DbHandle db, String tableId, ColumnDefinition cd, ArrayList<Map<String,Object>> choices) throws ServicesAvailabilityException {
@@ -181,6 +235,7 @@ public class ColumnUtil {
       throw new IllegalArgumentException("Unexpected displayChoices conversion failure!");
     }
     String choiceListId = dbInterface.setChoiceList(appName, db, choiceListJSON);
+    ChoiceListCache.get().put(appName, choiceListId, choiceListJSON);
     KeyValueStoreEntry e = KeyValueStoreUtils.buildEntry(tableId,
         KeyValueStoreConstants.PARTITION_COLUMN, cd.getElementKey(),
         KeyValueStoreConstants.COLUMN_DISPLAY_CHOICES_LIST, ElementDataType.string, choiceListId);
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+import android.content.Context;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.utilities.StaticStateManipulator;
+import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed horizontal layout of the columns of a spreadsheet view.
+ * <p>
+ * Built once per table metadata revision, set of localized display names and
+ * font size from the column order, column widths, localized display names and
+ * index (frozen) column. The left edge
+ * of each scrolling column is held in a prefix-summed offsets array, so
+ * hit-testing and finding the visible columns for a scroll position are binary
+ * searches.
+ * <p>
+ * The index column, if any, is not one of the scrolling columns; it is
+ * described by {@link #getIndexColumn()} and {@link #getIndexColumnWidth()}.
+ */
+public final class SpreadsheetLayout {
+
+  /**
+   * Maximum number of tables whose layout is retained.
+   */
+  private static final int MAX_LAYOUTS = 16;
+
+  /**
+   * appName + tableId => most recently built layout, least-recently-used first
+   */
+  private static final Map<String, SpreadsheetLayout> layouts =
+      new LinkedHashMap<String, SpreadsheetLayout>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SpreadsheetLayout> eldest) {
+          return size() > MAX_LAYOUTS;
+        }
+      };
+
+  static {
+    // register a state-reset manipulator for 'layouts' field.
+    StaticStateManipulator.get().register(new IStaticFieldManipulator() {
+
+      @Override
+      public void reset() {
+        synchronized (layouts) {
+          layouts.clear();
+        }
+      }
+
+    });
+  }
+
+  private final String revId;
+  private final int fontSize;
+  /**
+   * The localized display names the layout was built with; these depend on
+   * the user's locale, not on the table metadata revision.
+   */
+  private final Map<String, String> localizedDisplayNames;
+  private final String indexColumn;
+  private final String indexColumnDisplayName;
+  private final int indexColumnWidth;
+  private final String[] elementKeys;
+  private final String[] displayNames;
+  private final int[] widths;
+  /**
+   * xOffsets[i] is the left edge of column i; xOffsets[n] is the total width.
+   */
+  private final int[] xOffsets;
+
+  SpreadsheetLayout(TableUtil.TableColumns tableColumns, TableSettings settings, int fontSize) {
+    this.revId = settings.getRevId();
+    this.fontSize = fontSize;
+
+    Map<String, String> names = tableColumns.localizedDisplayNames;
+    this.localizedDisplayNames = names;
+    Map<String, Integer> colWidths = settings.getColumnWidths(tableColumns.orderedDefns);
+    ArrayList<String> columnOrder = settings.getColumnOrder(tableColumns.orderedDefns);
+
+    String index = settings.getIndexColumn();
+    if (index != null && !names.containsKey(index)) {
+      index = null;
+    }
+    this.indexColumn = index;
+    this.indexColumnDisplayName = (index == null) ? null : names.get(index);
+    this.indexColumnWidth = (index == null) ? 0 : widthOf(colWidths, index);
+
+    List<String> keys = new ArrayList<String>();
+    for (String elementKey : columnOrder) {
+      // skip stale entries in the column order
+      if (names.containsKey(elementKey) && !elementKey.equals(index)) {
+        keys.add(elementKey);
+      }
+    }
+
+    int n = keys.size();
+    elementKeys = new String[n];
+    displayNames = new String[n];
+    widths = new int[n];
+    xOffsets = new int[n + 1];
+    for (int i = 0; i < n; ++i) {
+      String elementKey = keys.get(i);
+      elementKeys[i] = elementKey;
+      displayNames[i] = names.get(elementKey);
+      widths[i] = widthOf(colWidths, elementKey);
+      xOffsets[i + 1] = xOffsets[i] + widths[i];
+    }
+  }
+
+  private static int widthOf(Map<String, Integer> colWidths, String elementKey) {
+    Integer width = colWidths.get(elementKey);
+    return (width == null) ? LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH : width;
+  }
+
+  private boolean isCurrent(TableUtil.TableColumns tableColumns, TableSettings settings,
+      int fontSize) {
+    return this.fontSize == fontSize && revId != null && revId.equals(settings.getRevId()) &&
+        (localizedDisplayNames == tableColumns.localizedDisplayNames ||
+            localizedDisplayNames.equals(tableColumns.localizedDisplayNames));
+  }
+
+  /**
+   * Get the layout for the table, reusing the previously built layout if the
+   * table metadata revision, localized display names and font size are
+   * unchanged.
+   *
+   * @param ctxt         used to obtain the default font size
+   * @param appName
+   * @param tableColumns
+   * @param settings
+   * @return the layout of the spreadsheet
+   */
+  public static SpreadsheetLayout get(Context ctxt, String appName,
+      TableUtil.TableColumns tableColumns, TableSettings settings) {
+    int fontSize = settings.getSpreadsheetViewFontSize(ctxt, appName);
+    String key = appName + "/" + settings.getTableId();
+    synchronized (layouts) {
+      SpreadsheetLayout layout = layouts.get(key);
+      if (layout != null && layout.isCurrent(tableColumns, settings, fontSize)) {
+        return layout;
+      }
+      layout = new SpreadsheetLayout(tableColumns, settings, fontSize);
+      layouts.put(key, layout);
+      return layout;
+    }
+  }
+
+  public String getRevId() {
+    return revId;
+  }
+
+  public int getFontSize() {
+    return fontSize;
+  }
+
+  /**
+   * @return the elementKey of the frozen index column, or null if none
+   */
+  public String getIndexColumn() {
+    return indexColumn;
+  }
+
+  public String getIndexColumnDisplayName() {
+    return indexColumnDisplayName;
+  }
+
+  /**
+   * @return the width of the frozen index column, or 0 if none
+   */
+  public int getIndexColumnWidth() {
+    return indexColumnWidth;
+  }
+
+  /**
+   * @return number of scrolling (non-index) columns
+   */
+  public int getColumnCount() {
+    return elementKeys.length;
+  }
+
+  public String getElementKey(int column) {
+    return elementKeys[column];
+  }
+
+  public String getDisplayName(int column) {
+    return displayNames[column];
+  }
+
+  public int getColumnWidth(int column) {
+    return widths[column];
+  }
+
+  /**
+   * @param column
+   * @return x-offset of the left edge of the column
+   */
+  public int getColumnLeft(int column) {
+    return xOffsets[column];
+  }
+
+  /**
+   * @param column
+   * @return x-offset of the right edge of the column (exclusive)
+   */
+  public int getColumnRight(int column) {
+    return xOffsets[column + 1];
+  }
+
+  /**
+   * @return the total width of the scrolling columns
+   */
+  public int getTotalWidth() {
+    return xOffsets[elementKeys.length];
+  }
+
+  /**
+   * Find the scrolling column containing the x-offset.
+   *
+   * @param x offset from the left edge of the first scrolling column
+   * @return the column index, or -1 if x is outside all of the columns
+   */
+  public int getColumnAt(int x) {
+    int n = elementKeys.length;
+    if (x < 0 || x >= xOffsets[n]) {
+      return -1;
+    }
+    // find the last column whose left edge is <= x
+    int lo = 0;
+    int hi = n - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (xOffsets[mid] <= x) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * @param scrollX the horizontal scroll position
+   * @return the first column that is at least partly visible, or -1 if none
+   */
+  public int getFirstVisibleColumn(int scrollX) {
+    return getColumnAt(Math.max(0, scrollX));
+  }
+
+  /**
+   * @param scrollX   the horizontal scroll position
+   * @param viewWidth the width available to the scrolling columns
+   * @return the last column that is at least partly visible, or -1 if none
+   */
+  public int getLastVisibleColumn(int scrollX, int viewWidth) {
+    if (viewWidth <= 0 || elementKeys.length == 0 || scrollX >= getTotalWidth()) {
+      return -1;
+    }
+    int right = Math.min(scrollX + viewWidth, getTotalWidth()) - 1;
+    return getColumnAt(Math.max(0, right));
+  }
+}
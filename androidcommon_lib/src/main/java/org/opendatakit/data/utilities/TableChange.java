@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+/**
+ * A committed change to a table of an app, as published on the
+ * {@link TableChangeBus}.
+ */
+public final class TableChange {
+
+  public enum Operation {
+    INSERT, UPDATE, DELETE,
+    /**
+     * a checkpoint of a row was added, saved or removed
+     */
+    CHECKPOINT,
+    /**
+     * the table was created or deleted
+     */
+    SCHEMA
+  }
+
+  private final String appName;
+  private final String tableId;
+  private final String rowId;
+  private final Operation operation;
+  private final String dataETag;
+  private final Object source;
+
+  /**
+   * @param appName
+   * @param tableId
+   * @param rowId     the affected row, or null if not known or not a single row
+   * @param operation
+   * @param dataETag  the dataETag of the table after the change, or null if not known
+   * @param source    the object that made the change (e.g., an ExecutorContext), so that
+   *                  a listener can ignore its own changes. May be null.
+   */
+  public TableChange(String appName, String tableId, String rowId, Operation operation,
+      String dataETag, Object source) {
+    this.appName = appName;
+    this.tableId = tableId;
+    this.rowId = rowId;
+    this.operation = operation;
+    this.dataETag = dataETag;
+    this.source = source;
+  }
+
+  public String getAppName() {
+    return appName;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  public String getRowId() {
+    return rowId;
+  }
+
+  public Operation getOperation() {
+    return operation;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public Object getSource() {
+    return source;
+  }
+
+  @Override
+  public String toString() {
+    return operation + " " + appName + "/" + tableId + ((rowId == null) ? "" : ("/" + rowId));
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+import org.opendatakit.listener.TableChangeListener;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.StaticStateManipulator;
+import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * App-wide notification of committed table changes.
+ * <p>
+ * Writers (the ExecutorProcessor, native activities) publish a
+ * {@link TableChange} after each successful write. Anything that holds data
+ * read from a table (OdkData live queries, native list views) can register a
+ * listener and refresh only the tables and rows that changed, rather than
+ * re-querying blindly.
+ * <p>
+ * Publishing takes no locks: the listeners of each app are held in a
+ * copy-on-write list, so registration is comparatively expensive but
+ * delivery is a plain iteration. Listeners are called synchronously on the
+ * publishing thread and must not block.
+ */
+public class TableChangeBus {
+
+  private static final String TAG = TableChangeBus.class.getSimpleName();
+
+  private static TableChangeBus tableChangeBus = new TableChangeBus();
+
+  static {
+    // register a state-reset manipulator for 'tableChangeBus' field.
+    StaticStateManipulator.get().register(new IStaticFieldManipulator() {
+
+      @Override
+      public void reset() {
+        tableChangeBus = new TableChangeBus();
+      }
+
+    });
+  }
+
+  public static TableChangeBus get() {
+    return tableChangeBus;
+  }
+
+  /**
+   * For mocking -- supply a mocked object.
+   *
+   * @param bus
+   */
+  public static void set(TableChangeBus bus) {
+    tableChangeBus = bus;
+  }
+
+  /**
+   * appName => listeners
+   */
+  private final ConcurrentMap<String, CopyOnWriteArrayList<TableChangeListener>> listeners =
+      new ConcurrentHashMap<String, CopyOnWriteArrayList<TableChangeListener>>();
+
+  protected TableChangeBus() {
+  }
+
+  private CopyOnWriteArrayList<TableChangeListener> getListeners(String appName) {
+    CopyOnWriteArrayList<TableChangeListener> list = listeners.get(appName);
+    if (list == null) {
+      list = new CopyOnWriteArrayList<TableChangeListener>();
+      CopyOnWriteArrayList<TableChangeListener> existing = listeners.putIfAbsent(appName, list);
+      if (existing != null) {
+        list = existing;
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Receive the changes to the tables of the app.
+   *
+   * @param appName
+   * @param listener
+   */
+  public void register(String appName, TableChangeListener listener) {
+    getListeners(appName).addIfAbsent(listener);
+  }
+
+  public void unregister(String appName, TableChangeListener listener) {
+    CopyOnWriteArrayList<TableChangeListener> list = listeners.get(appName);
+    if (list != null) {
+      list.remove(listener);
+    }
+  }
+
+  /**
+   * Deliver the change to every listener registered for its app.
+   * A listener that throws does not prevent delivery to the others.
+   *
+   * @param change
+   */
+  public void publish(TableChange change) {
+    CopyOnWriteArrayList<TableChangeListener> list = listeners.get(change.getAppName());
+    if (list == null) {
+      return;
+    }
+    for (TableChangeListener listener : list) {
+      try {
+        listener.tableChanged(change);
+      } catch (RuntimeException e) {
+        WebLogger.getLogger(change.getAppName()).w(TAG, "listener failed for " + change);
+        WebLogger.getLogger(change.getAppName()).printStackTrace(e);
+      }
+    }
+  }
+}
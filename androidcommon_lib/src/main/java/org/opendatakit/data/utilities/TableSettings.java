@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+import android.content.Context;
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.data.TableViewType;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.utilities.KeyValueStoreUtils;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
+import org.opendatakit.utilities.NameUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the table-level key-value-store settings of a table.
+ * <p>
+ * Obtained from {@link TableUtil#getTableSettings} which retrieves all of the
+ * KVS entries for the table in a single call and decodes them here. The
+ * accessors return the same values as the individual TableUtil getters.
+ * The snapshot is tied to the metadata revision it was decoded from
+ * (see {@link #getRevId()}).
+ */
+public final class TableSettings {
+
+  private final String tableId;
+  private final String revId;
+
+  private final String rawDisplayName;
+  private final TableViewType defaultViewType;
+  private final String detailViewFilename;
+  private final String listViewFilename;
+  private final String mapListViewFilename;
+  private final TableUtil.MapViewColorRuleInfo mapListViewColorRuleInfo;
+  private final String mapListViewLatitudeElementKey;
+  private final String mapListViewLongitudeElementKey;
+  private final String sortColumn;
+  private final String sortOrder;
+  private final String indexColumn;
+  private final Integer spreadsheetViewFontSize;
+  private final List<String> groupByColumns;
+  private final List<String> columnOrder;
+  private final boolean tableLocked;
+  private final boolean unverifiedUserCanCreate;
+  private final Map<String, Integer> columnWidths;
+
+  TableSettings(String appName, String tableId, String revId, List<KeyValueStoreEntry> entries) {
+    this.tableId = tableId;
+    this.revId = revId;
+
+    String rawDisplayName = null;
+    TableViewType defaultViewType = TableUtil.DEFAULT_KEY_CURRENT_VIEW_TYPE;
+    String detailViewFilename = null;
+    String listViewFilename = null;
+    String mapListViewFilename = null;
+    String colorType = null;
+    String colorColumnElementKey = null;
+    String latitudeElementKey = null;
+    String longitudeElementKey = null;
+    String sortColumn = null;
+    String sortOrder = null;
+    String indexColumn = null;
+    Integer fontSize = null;
+    ArrayList<String> groupByColumns = null;
+    ArrayList<String> columnOrder = null;
+    boolean tableLocked = false;
+    boolean unverifiedUserCanCreate = true;
+    Map<String, Integer> columnWidths = new HashMap<String, Integer>();
+
+    for (KeyValueStoreEntry entry : entries) {
+      if (KeyValueStoreConstants.PARTITION_TABLE.equals(entry.partition)) {
+        if (KeyValueStoreConstants.ASPECT_DEFAULT.equals(entry.aspect)) {
+          if (KeyValueStoreConstants.TABLE_DISPLAY_NAME.equals(entry.key)) {
+            rawDisplayName = entry.value;
+          } else if (LocalKeyValueStoreConstants.Tables.TABLE_DEFAULT_VIEW_TYPE
+              .equals(entry.key)) {
+            if (entry.value != null) {
+              try {
+                defaultViewType = TableViewType.valueOf(entry.value);
+              } catch (Exception e) {
+                defaultViewType = TableUtil.DEFAULT_KEY_CURRENT_VIEW_TYPE;
+              }
+            }
+          } else if (LocalKeyValueStoreConstants.Tables.KEY_DETAIL_VIEW_FILE_NAME
+              .equals(entry.key)) {
+            detailViewFilename = KeyValueStoreUtils.getString(entry);
+          } else if (LocalKeyValueStoreConstants.Tables.KEY_LIST_VIEW_FILE_NAME
+              .equals(entry.key)) {
+            listViewFilename = KeyValueStoreUtils.getString(entry);
+          } else if (LocalKeyValueStoreConstants.Tables.KEY_MAP_LIST_VIEW_FILE_NAME
+              .equals(entry.key)) {
+            mapListViewFilename = KeyValueStoreUtils.getString(entry);
+          } else if (KeyValueStoreConstants.TABLE_SORT_COL.equals(entry.key)) {
+            sortColumn = KeyValueStoreUtils.getString(entry);
+          } else if (KeyValueStoreConstants.TABLE_SORT_ORDER.equals(entry.key)) {
+            sortOrder = KeyValueStoreUtils.getString(entry);
+            if (sortOrder == null) {
+              sortOrder = TableUtil.DEFAULT_KEY_SORT_ORDER;
+            }
+          } else if (KeyValueStoreConstants.TABLE_INDEX_COL.equals(entry.key)) {
+            indexColumn = KeyValueStoreUtils.getString(entry);
+          } else if (KeyValueStoreConstants.TABLE_GROUP_BY_COLS.equals(entry.key)) {
+            groupByColumns = KeyValueStoreUtils.getArray(appName, entry, String.class);
+          } else if (KeyValueStoreConstants.TABLE_COL_ORDER.equals(entry.key)) {
+            columnOrder = KeyValueStoreUtils.getArray(appName, entry, String.class);
+          }
+        } else if (LocalKeyValueStoreConstants.TableSecurity.ASPECT.equals(entry.aspect)) {
+          if (LocalKeyValueStoreConstants.TableSecurity.KEY_LOCKED.equals(entry.key)) {
+            Boolean outcome = KeyValueStoreUtils.getBoolean(entry);
+            tableLocked = (outcome != null) && outcome;
+          } else if (LocalKeyValueStoreConstants.TableSecurity.KEY_UNVERIFIED_USER_CAN_CREATE
+              .equals(entry.key)) {
+            Boolean outcome = KeyValueStoreUtils.getBoolean(entry);
+            unverifiedUserCanCreate = (outcome != null) && outcome;
+          }
+        }
+      } else if (LocalKeyValueStoreConstants.Spreadsheet.PARTITION.equals(entry.partition)) {
+        if (KeyValueStoreConstants.ASPECT_DEFAULT.equals(entry.aspect) &&
+            LocalKeyValueStoreConstants.Spreadsheet.KEY_FONT_SIZE.equals(entry.key)) {
+          fontSize = KeyValueStoreUtils.getInteger(entry);
+        } else if (LocalKeyValueStoreConstants.Spreadsheet.KEY_COLUMN_WIDTH.equals(entry.key)) {
+          Integer value = KeyValueStoreUtils.getInteger(entry);
+          if ( value == null || value <= 0 ) {
+            value = LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH;
+          }
+          if ( value > LocalKeyValueStoreConstants.Spreadsheet.MAX_COL_WIDTH ) {
+            value = LocalKeyValueStoreConstants.Spreadsheet.MAX_COL_WIDTH;
+          }
+          columnWidths.put(entry.aspect, value);
+        }
+      } else if (LocalKeyValueStoreConstants.Map.PARTITION.equals(entry.partition) &&
+          KeyValueStoreConstants.ASPECT_DEFAULT.equals(entry.aspect)) {
+        if (LocalKeyValueStoreConstants.Map.KEY_COLOR_RULE_TYPE.equals(entry.key)) {
+          colorType = KeyValueStoreUtils.getString(entry);
+        } else if (LocalKeyValueStoreConstants.Map.KEY_COLOR_RULE_COLUMN.equals(entry.key)) {
+          colorColumnElementKey = KeyValueStoreUtils.getString(entry);
+        } else if (LocalKeyValueStoreConstants.Map.KEY_MAP_LAT_COL.equals(entry.key)) {
+          latitudeElementKey = KeyValueStoreUtils.getString(entry);
+        } else if (LocalKeyValueStoreConstants.Map.KEY_MAP_LONG_COL.equals(entry.key)) {
+          longitudeElementKey = KeyValueStoreUtils.getString(entry);
+        }
+      }
+    }
+
+    if (rawDisplayName == null) {
+      rawDisplayName = NameUtil.normalizeDisplayName(NameUtil.constructSimpleDisplayName(tableId));
+    }
+
+    if (colorType != null && !colorType.equals(LocalKeyValueStoreConstants.Map.COLOR_TYPE_TABLE) &&
+        !colorType.equals(LocalKeyValueStoreConstants.Map.COLOR_TYPE_STATUS)) {
+      colorType = LocalKeyValueStoreConstants.Map.COLOR_TYPE_NONE;
+    }
+
+    this.rawDisplayName = rawDisplayName;
+    this.defaultViewType = defaultViewType;
+    this.detailViewFilename = detailViewFilename;
+    this.listViewFilename = listViewFilename;
+    this.mapListViewFilename = mapListViewFilename;
+    this.mapListViewColorRuleInfo = new TableUtil.MapViewColorRuleInfo(colorType,
+        colorColumnElementKey);
+    this.mapListViewLatitudeElementKey = latitudeElementKey;
+    this.mapListViewLongitudeElementKey = longitudeElementKey;
+    this.sortColumn = sortColumn;
+    this.sortOrder = sortOrder;
+    this.indexColumn = indexColumn;
+    this.spreadsheetViewFontSize = fontSize;
+    this.groupByColumns = (groupByColumns == null) ?
+        Collections.<String>emptyList() : Collections.unmodifiableList(groupByColumns);
+    this.columnOrder = (columnOrder == null) ?
+        Collections.<String>emptyList() : Collections.unmodifiableList(columnOrder);
+    this.tableLocked = tableLocked;
+    this.unverifiedUserCanCreate = unverifiedUserCanCreate;
+    this.columnWidths = Collections.unmodifiableMap(columnWidths);
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  /**
+   * @return the revId of the table metadata this snapshot was decoded from
+   */
+  public String getRevId() {
+    return revId;
+  }
+
+  public String getRawDisplayName() {
+    return rawDisplayName;
+  }
+
+  /**
+   * @return the specified default view type or SPREADSHEET if none defined.
+   */
+  public TableViewType getDefaultViewType() {
+    return defaultViewType;
+  }
+
+  /**
+   * @return null if none defined.
+   */
+  public String getDetailViewFilename() {
+    return detailViewFilename;
+  }
+
+  /**
+   * @return null if none defined.
+   */
+  public String getListViewFilename() {
+    return listViewFilename;
+  }
+
+  /**
+   * @return null if none defined.
+   */
+  public String getMapListViewFilename() {
+    return mapListViewFilename;
+  }
+
+  public TableUtil.MapViewColorRuleInfo getMapListViewColorRuleInfo() {
+    return mapListViewColorRuleInfo;
+  }
+
+  /**
+   * @param orderedDefns used to find a latitude column if none is specified
+   * @return the elementKey of the latitude column, or null if there is none
+   */
+  public String getMapListViewLatitudeElementKey(OrderedColumns orderedDefns) {
+    if (mapListViewLatitudeElementKey != null) {
+      return mapListViewLatitudeElementKey;
+    }
+    final List<ColumnDefinition> geoPointCols = orderedDefns.getGeopointColumnDefinitions();
+    for (ColumnDefinition cd : orderedDefns.getColumnDefinitions()) {
+      if (orderedDefns.isLatitudeColumnDefinition(geoPointCols, cd)) {
+        return cd.getElementKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param orderedDefns used to find a longitude column if none is specified
+   * @return the elementKey of the longitude column, or null if there is none
+   */
+  public String getMapListViewLongitudeElementKey(OrderedColumns orderedDefns) {
+    if (mapListViewLongitudeElementKey != null) {
+      return mapListViewLongitudeElementKey;
+    }
+    final List<ColumnDefinition> geoPointCols = orderedDefns.getGeopointColumnDefinitions();
+    for (ColumnDefinition cd : orderedDefns.getColumnDefinitions()) {
+      if (orderedDefns.isLongitudeColumnDefinition(geoPointCols, cd)) {
+        return cd.getElementKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return null if none defined.
+   */
+  public String getSortColumn() {
+    return sortColumn;
+  }
+
+  /**
+   * @return null if no sort order entry exists; ASC if the entry has no value.
+   */
+  public String getSortOrder() {
+    return sortOrder;
+  }
+
+  /**
+   * @return the elementKey of the indexed (frozen) column or null if none
+   */
+  public String getIndexColumn() {
+    return indexColumn;
+  }
+
+  /**
+   * @param ctxt    used to access the app properties if the table does not specify a font size
+   * @param appName
+   * @return the font size for the spreadsheet view
+   */
+  public int getSpreadsheetViewFontSize(Context ctxt, String appName) {
+    if (spreadsheetViewFontSize != null) {
+      return spreadsheetViewFontSize;
+    }
+    PropertiesSingleton props = CommonToolProperties.get(ctxt, appName);
+    Integer fs = props.getIntegerProperty(CommonToolProperties.KEY_FONT_SIZE);
+    return fs == null ? CommonToolProperties.DEFAULT_FONT_SIZE : fs.intValue();
+  }
+
+  /**
+   * @return a modifiable copy of the group-by columns, in order. Empty list if none.
+   */
+  public ArrayList<String> getGroupByColumns() {
+    return new ArrayList<String>(groupByColumns);
+  }
+
+  /**
+   * @param columns used to supply the persisted columns if no order is specified
+   * @return a modifiable list of the elementKeys in the order of display.
+   */
+  public ArrayList<String> getColumnOrder(OrderedColumns columns) {
+    if (columnOrder.isEmpty()) {
+      return new ArrayList<String>(columns.getRetentionColumnNames());
+    }
+    return new ArrayList<String>(columnOrder);
+  }
+
+  /**
+   * @param columns used to supply default widths for columns without a width
+   * @return a modifiable map of elementKey to column width
+   */
+  public Map<String, Integer> getColumnWidths(OrderedColumns columns) {
+    Map<String, Integer> colWidths = new HashMap<String, Integer>(columnWidths);
+    for (ColumnDefinition cd : columns.getColumnDefinitions()) {
+      if (!colWidths.containsKey(cd.getElementKey())) {
+        colWidths.put(cd.getElementKey(),
+            LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH);
+      }
+    }
+    return colWidths;
+  }
+
+  public boolean isTableLocked() {
+    return tableLocked;
+  }
+
+  /**
+   * @return true if unverified users can create rows (the default if unspecified)
+   */
+  public boolean isUnverifiedUserCanCreate() {
+    return unverifiedUserCanCreate;
+  }
+}
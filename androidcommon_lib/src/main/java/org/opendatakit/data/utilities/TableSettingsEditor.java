@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.data.TableViewType;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.KeyValueStoreUtils;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects changes to the table-level and column-width settings of a table
+ * and writes them all at once.
+ * <p>
+ * Replaces a sequence of TableUtil.atomicSet* and ColumnUtil.atomicSetColumnWidth
+ * calls, each of which opens its own database handle. {@link #apply} opens one
+ * handle and writes every changed entry with a single replaceTableMetadataList
+ * call, so the metadata revision is bumped once.
+ * <pre>
+ *   TableUtil.get().editTableSettings(appName, tableId)
+ *       .setSortColumn(elementKey)
+ *       .setSortOrder("DESC")
+ *       .setColumnWidth(elementKey, 200)
+ *       .apply(dbInterface);
+ * </pre>
+ */
+public class TableSettingsEditor {
+
+  private final String appName;
+  private final String tableId;
+
+  /**
+   * partition/aspect/key => entry. A later change to the same setting replaces
+   * the earlier one.
+   */
+  private final Map<String, KeyValueStoreEntry> changes =
+      new LinkedHashMap<String, KeyValueStoreEntry>();
+
+  TableSettingsEditor(String appName, String tableId) {
+    this.appName = appName;
+    this.tableId = tableId;
+  }
+
+  private TableSettingsEditor put(String partition, String aspect, String key,
+      ElementDataType type, String value) {
+    KeyValueStoreEntry e = KeyValueStoreUtils.buildEntry(tableId, partition, aspect, key, type,
+        value);
+    changes.put(partition + "/" + aspect + "/" + key, e);
+    return this;
+  }
+
+  private String toJsonArray(ArrayList<String> elementKeys, String what) {
+    try {
+      return ODKFileUtils.mapper.writeValueAsString(elementKeys);
+    } catch (JsonProcessingException e1) {
+      e1.printStackTrace();
+      throw new IllegalArgumentException("Unexpected " + what + " conversion failure!");
+    }
+  }
+
+  public TableSettingsEditor setRawDisplayName(String rawDisplayName) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        KeyValueStoreConstants.TABLE_DISPLAY_NAME, ElementDataType.object, rawDisplayName);
+  }
+
+  public TableSettingsEditor setDefaultViewType(TableViewType viewType) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        LocalKeyValueStoreConstants.Tables.TABLE_DEFAULT_VIEW_TYPE, ElementDataType.string,
+        viewType.name());
+  }
+
+  public TableSettingsEditor setDetailViewFilename(String detailViewRelativePath) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        LocalKeyValueStoreConstants.Tables.KEY_DETAIL_VIEW_FILE_NAME, ElementDataType.configpath,
+        detailViewRelativePath);
+  }
+
+  public TableSettingsEditor setListViewFilename(String listViewRelativePath) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        LocalKeyValueStoreConstants.Tables.KEY_LIST_VIEW_FILE_NAME, ElementDataType.configpath,
+        listViewRelativePath);
+  }
+
+  public TableSettingsEditor setMapListViewFilename(String mapListViewRelativePath) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        LocalKeyValueStoreConstants.Tables.KEY_MAP_LIST_VIEW_FILE_NAME, ElementDataType.configpath,
+        mapListViewRelativePath);
+  }
+
+  public TableSettingsEditor setSortColumn(String elementKey) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        KeyValueStoreConstants.TABLE_SORT_COL, ElementDataType.string, elementKey);
+  }
+
+  public TableSettingsEditor setSortOrder(String sortOrder) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        KeyValueStoreConstants.TABLE_SORT_ORDER, ElementDataType.string, sortOrder);
+  }
+
+  public TableSettingsEditor setIndexColumn(String elementKey) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        KeyValueStoreConstants.TABLE_INDEX_COL, ElementDataType.string, elementKey);
+  }
+
+  public TableSettingsEditor setSpreadsheetViewFontSize(Integer fontSize) {
+    return put(LocalKeyValueStoreConstants.Spreadsheet.PARTITION,
+        KeyValueStoreConstants.ASPECT_DEFAULT, LocalKeyValueStoreConstants.Spreadsheet.KEY_FONT_SIZE,
+        ElementDataType.integer, (fontSize == null) ? null : Integer.toString(fontSize));
+  }
+
+  public TableSettingsEditor setGroupByColumns(ArrayList<String> elementKeys) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        KeyValueStoreConstants.TABLE_GROUP_BY_COLS, ElementDataType.array,
+        toJsonArray(elementKeys, "groupByCols"));
+  }
+
+  public TableSettingsEditor setColumnOrder(ArrayList<String> elementKeys) {
+    return put(KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+        KeyValueStoreConstants.TABLE_COL_ORDER, ElementDataType.array,
+        toJsonArray(elementKeys, "columnOrder"));
+  }
+
+  public TableSettingsEditor setColumnWidth(String elementKey, Integer width) {
+    return put(LocalKeyValueStoreConstants.Spreadsheet.PARTITION, elementKey,
+        LocalKeyValueStoreConstants.Spreadsheet.KEY_COLUMN_WIDTH, ElementDataType.integer,
+        (width == null) ? null : Integer.toString(width));
+  }
+
+  /**
+   * @return true if no settings have been changed.
+   */
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  /**
+   * Write all the changed settings using an already-open database handle.
+   *
+   * @param dbInterface
+   * @param db
+   * @throws ServicesAvailabilityException
+   */
+  public void apply(UserDbInterface dbInterface, DbHandle db)
+      throws ServicesAvailabilityException {
+    if (changes.isEmpty()) {
+      return;
+    }
+    List<KeyValueStoreEntry> entries = new ArrayList<KeyValueStoreEntry>(changes.values());
+    // a single call is one transaction and one metadata revision change
+    dbInterface.replaceTableMetadataList(appName, db, tableId, entries, false);
+    TableUtil.get().invalidateTableSettings(appName, tableId);
+    changes.clear();
+  }
+
+  /**
+   * Open the database, write all the changed settings, and close the database.
+   *
+   * @param dbInterface
+   * @throws ServicesAvailabilityException
+   */
+  public void apply(UserDbInterface dbInterface) throws ServicesAvailabilityException {
+    if (changes.isEmpty()) {
+      return;
+    }
+    DbHandle db = null;
+    try {
+      db = dbInterface.openDatabase(appName);
+
+      apply(dbInterface, db);
+    } catch (ServicesAvailabilityException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      throw e;
+    } finally {
+      if ( db != null ) {
+        try {
+          dbInterface.closeDatabase(appName, db);
+        } catch (ServicesAvailabilityException e) {
+          WebLogger.getLogger(appName).printStackTrace(e);
+          throw e;
+        }
+      }
+    }
+  }
+}
@@ -23,6 +23,7 @@ import org.opendatakit.database.RoleConsts;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.TableMetaDataEntries;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.database.utilities.KeyValueStoreUtils;
@@ -114,8 +115,75 @@ public class TableUtil {
     tableUtil = util;
   }
   
+  /**
+   * appName + tableId => most recently decoded TableSettings for that table.
+   */
+  private final Map<String, TableSettings> tableSettingsCache = new HashMap<String, TableSettings>();
+
   protected TableUtil() {}
 
+  /**
+   * Retrieve all of the table-level settings in the key-value-store for this
+   * table with a single database call.
+   *
+   * The revId of the previously-decoded snapshot is passed to the database layer.
+   * If the metadata has not changed since then, the cached snapshot is returned
+   * without decoding the entries again.
+   *
+   * @param dbInterface
+   * @param appName
+   * @param db
+   * @param tableId
+   * @return snapshot of the table's settings
+   * @throws ServicesAvailabilityException
+   */
+  public TableSettings getTableSettings(UserDbInterface dbInterface, String appName, DbHandle db,
+      String tableId) throws ServicesAvailabilityException {
+    String cacheKey = appName + "/" + tableId;
+    TableSettings cached;
+    synchronized (tableSettingsCache) {
+      cached = tableSettingsCache.get(cacheKey);
+    }
+
+    TableMetaDataEntries metaDataEntries = dbInterface.getTableMetadata(appName, db, tableId,
+        null, null, null, (cached == null) ? null : cached.getRevId());
+    if ( cached != null && cached.getRevId() != null &&
+        cached.getRevId().equals(metaDataEntries.getRevId()) ) {
+      return cached;
+    }
+
+    TableSettings settings = new TableSettings(appName, tableId, metaDataEntries.getRevId(),
+        metaDataEntries.getEntries());
+    synchronized (tableSettingsCache) {
+      tableSettingsCache.put(cacheKey, settings);
+    }
+    return settings;
+  }
+
+  /**
+   * Start a set of changes to the settings of this table. The changes are
+   * written together when {@link TableSettingsEditor#apply} is called.
+   *
+   * @param appName
+   * @param tableId
+   * @return an editor for the table's settings
+   */
+  public TableSettingsEditor editTableSettings(String appName, String tableId) {
+    return new TableSettingsEditor(appName, tableId);
+  }
+
+  /**
+   * Discard any cached TableSettings for the given table.
+   *
+   * @param appName
+   * @param tableId
+   */
+  public void invalidateTableSettings(String appName, String tableId) {
+    synchronized (tableSettingsCache) {
+      tableSettingsCache.remove(appName + "/" + tableId);
+    }
+  }
+
   /**
    * Determine whether table is locked or not
    *
@@ -159,11 +227,10 @@ public class TableUtil {
       String tableId) throws
       ServicesAvailabilityException {
 
-    String rolesList = dbInterface.getRolesList(appName);
+    UserContext userContext = UserContext.get(dbInterface, appName);
 
-    if ( rolesList != null &&
-        ( rolesList.contains(RoleConsts.ROLE_ADMINISTRATOR) ||
-          rolesList.contains(RoleConsts.ROLE_SUPER_USER)) ) {
+    if ( userContext.hasRole(RoleConsts.ROLE_ADMINISTRATOR) ||
+         userContext.hasRole(RoleConsts.ROLE_SUPER_USER) ) {
       return true;
     }
 
@@ -171,7 +238,7 @@ public class TableUtil {
       return false;
     }
 
-    if ( rolesList != null && rolesList.contains(RoleConsts.ROLE_USER) ) {
+    if ( userContext.hasRole(RoleConsts.ROLE_USER) ) {
       return true;
     }
 
@@ -1182,18 +1249,17 @@ public class TableUtil {
       String appName, DbHandle db, String tableId ) throws ServicesAvailabilityException {
 
     String[] adminColumns = dbInterface.getAdminColumns();
-    HashMap<String,String> colDisplayNames = new HashMap<String,String>();
     OrderedColumns orderedDefns = dbInterface
         .getUserDefinedColumns(appName, db, tableId);
+    ArrayList<String> elementKeys = new ArrayList<String>();
     for (ColumnDefinition cd : orderedDefns.getColumnDefinitions()) {
       if (cd.isUnitOfRetention()) {
-        String localizedDisplayName;
-        localizedDisplayName = ColumnUtil.get().getLocalizedDisplayName(userSelectedDefaultLocale,
-            dbInterface, appName, db, tableId, cd.getElementKey());
-
-        colDisplayNames.put(cd.getElementKey(), localizedDisplayName);
+        elementKeys.add(cd.getElementKey());
       }
     }
+    // fetch all the display names in one call rather than one call per column
+    Map<String,String> colDisplayNames = ColumnUtil.get().getLocalizedDisplayNames(
+        userSelectedDefaultLocale, dbInterface, appName, db, tableId, elementKeys);
     return new TableColumns(orderedDefns, adminColumns, colDisplayNames);
   }
 }
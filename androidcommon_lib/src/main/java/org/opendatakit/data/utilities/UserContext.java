@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.data.utilities;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.opendatakit.utilities.StaticStateManipulator;
+import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The roles, default group and users list of the active user of an app.
+ * <p>
+ * These are retrieved together and held per appName, so authorization checks
+ * cost one getActiveUser() call rather than four database calls. The cached
+ * context is rebuilt when the active user differs from the one it was built
+ * for (sign-in, sign-out or a change of server settings), and all contexts are
+ * dropped when the database service connects or disconnects.
+ */
+public final class UserContext {
+
+  private static final String TAG = UserContext.class.getSimpleName();
+
+  /**
+   * appName => UserContext of the active user
+   */
+  private static Map<String, UserContext> userContexts = new HashMap<String, UserContext>();
+
+  /**
+   * Incremented on every invalidation so that a lookup that raced with an
+   * invalidation does not re-populate the cache with what it read before it.
+   */
+  private static long generation = 0L;
+
+  static {
+    // register a state-reset manipulator for 'userContexts' field.
+    StaticStateManipulator.get().register(new IStaticFieldManipulator() {
+
+      @Override
+      public void reset() {
+        invalidate();
+      }
+
+    });
+  }
+
+  private final String activeUser;
+  private final String rolesList;
+  private final Set<String> roles;
+  private final String defaultGroup;
+  private final String usersList;
+
+  private UserContext(String appName, String activeUser, String rolesList, String defaultGroup,
+      String usersList) {
+    this.activeUser = activeUser;
+    this.rolesList = rolesList;
+    this.roles = parseRoles(appName, rolesList);
+    this.defaultGroup = defaultGroup;
+    this.usersList = usersList;
+  }
+
+  private static Set<String> parseRoles(String appName, String rolesList) {
+    if (rolesList == null || rolesList.length() == 0) {
+      return Collections.emptySet();
+    }
+    try {
+      ArrayList<String> roleArray = ODKFileUtils.mapper
+          .readValue(rolesList, new TypeReference<ArrayList<String>>() {
+          });
+      if (roleArray == null) {
+        return Collections.emptySet();
+      }
+      return Collections.unmodifiableSet(new HashSet<String>(roleArray));
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).e(TAG, "unable to parse roles list: " + rolesList);
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return Collections.emptySet();
+    }
+  }
+
+  /**
+   * Get the UserContext for the current active user of the app. The active
+   * user is retrieved on every call; the roles, default group and users list
+   * are only retrieved when it differs from the cached one, or the first time
+   * the app is looked up after an invalidation.
+   *
+   * @param dbInterface
+   * @param appName
+   * @return the user context of the active user
+   * @throws ServicesAvailabilityException
+   */
+  public static UserContext get(UserDbInterface dbInterface, String appName)
+      throws ServicesAvailabilityException {
+    UserContext uc;
+    long loadGeneration;
+    synchronized (UserContext.class) {
+      uc = userContexts.get(appName);
+      loadGeneration = generation;
+    }
+    String activeUser = dbInterface.getActiveUser(appName);
+    if (uc != null && (activeUser == null ? uc.activeUser == null :
+        activeUser.equals(uc.activeUser))) {
+      return uc;
+    }
+
+    uc = new UserContext(appName, activeUser,
+        dbInterface.getRolesList(appName), dbInterface.getDefaultGroup(appName),
+        dbInterface.getUsersList(appName));
+    synchronized (UserContext.class) {
+      if (loadGeneration == generation) {
+        userContexts.put(appName, uc);
+      }
+    }
+    return uc;
+  }
+
+  /**
+   * Discard all cached user contexts. Called when the database service
+   * connects or disconnects.
+   */
+  public static synchronized void invalidate() {
+    ++generation;
+    userContexts = new HashMap<String, UserContext>();
+  }
+
+  public String getActiveUser() {
+    return activeUser;
+  }
+
+  /**
+   * @return the JSON serialization of the roles list, or null
+   */
+  public String getRolesList() {
+    return rolesList;
+  }
+
+  /**
+   * @return the parsed roles of the active user
+   */
+  public Set<String> getRoles() {
+    return roles;
+  }
+
+  public boolean hasRole(String role) {
+    return roles.contains(role);
+  }
+
+  public String getDefaultGroup() {
+    return defaultGroup;
+  }
+
+  /**
+   * @return the JSON serialization of the users list, or null
+   */
+  public String getUsersList() {
+    return usersList;
+  }
+}
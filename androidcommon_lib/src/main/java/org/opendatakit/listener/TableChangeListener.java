@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.listener;
+
+import org.opendatakit.data.utilities.TableChange;
+
+public interface TableChangeListener {
+
+  /**
+   * Called on the thread that made the change, after the change has been
+   * committed. Implementations should return promptly.
+   *
+   * @param change
+   */
+  void tableChanged(TableChange change);
+}
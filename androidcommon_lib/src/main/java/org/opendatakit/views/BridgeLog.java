@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import android.util.Log;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.WebLoggerIf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Logging for the hot paths of the WebView and the javascript bridge
+ * (resource loads, url loading, javascript url invocations, odkData calls).
+ * <p>
+ * Messages below the current level are discarded before any string is built.
+ * The arguments of a message are only concatenated if it will be logged. The
+ * level defaults to DEBUG, the lowest level of any message sent here, so every
+ * message reaches the WebLogger of the app and is filtered by its configuration;
+ * {@link #setLevel(int)} can raise it to skip building the messages at all.
+ * The WebViewClient's per-resource callbacks (resource loads, url loading
+ * and visited history) are sampled: at DEBUG level only one in
+ * SAMPLE_INTERVAL of each is logged; at VERBOSE level all are. Javascript url
+ * invocations and odkData calls are never sampled, since each one is needed
+ * to follow the conversation with the page.
+ * <p>
+ * Messages are placed in a fixed-size ring buffer and written to the
+ * WebLogger of the app on a background thread, so the calling (UI or
+ * bridge) thread never does logging I/O. If the buffer fills faster than it
+ * is drained, the oldest messages are overwritten and the number of dropped
+ * messages is logged.
+ */
+public final class BridgeLog {
+
+  // event ids; those below SAMPLED_EVENT_COUNT are sampled
+  static final int EVENT_LOAD_RESOURCE = 0;
+  static final int EVENT_URL_LOADING = 1;
+  static final int EVENT_VISITED_HISTORY = 2;
+  private static final int SAMPLED_EVENT_COUNT = 3;
+  static final int EVENT_JAVASCRIPT_URL = 3;
+  static final int EVENT_ODKDATA_CALL = 4;
+
+  private static final int SAMPLE_INTERVAL = 16;
+  private static final int RING_SIZE = 256;
+
+  /**
+   * The lowest android.util.Log level that is passed on to the WebLogger.
+   */
+  private static volatile int level = Log.DEBUG;
+
+  private static final Map<String, BridgeLog> loggers = new HashMap<String, BridgeLog>();
+
+  private static final ExecutorService flusher = Executors
+      .newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "BridgeLog");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+
+  private final String appName;
+  private final AtomicIntegerArray eventCounts = new AtomicIntegerArray(SAMPLED_EVENT_COUNT);
+
+  // the ring buffer; all guarded by 'this'
+  private final int[] levels = new int[RING_SIZE];
+  private final String[] tags = new String[RING_SIZE];
+  private final String[] messages = new String[RING_SIZE];
+  private final long[] times = new long[RING_SIZE];
+  private int head = 0;
+  private int count = 0;
+  private int dropped = 0;
+  private boolean flushScheduled = false;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  private BridgeLog(String appName) {
+    this.appName = appName;
+  }
+
+  static BridgeLog get(String appName) {
+    synchronized (loggers) {
+      BridgeLog log = loggers.get(appName);
+      if (log == null) {
+        log = new BridgeLog(appName);
+        loggers.put(appName, log);
+      }
+      return log;
+    }
+  }
+
+  /**
+   * @param newLevel the lowest android.util.Log level to pass on to the WebLogger
+   *                 (e.g., Log.INFO to drop the odkData call traces). Log.VERBOSE
+   *                 also turns off the sampling of the per-resource events.
+   */
+  public static void setLevel(int newLevel) {
+    level = newLevel;
+  }
+
+  /**
+   * @param logLevel
+   * @param event    one of the EVENT_ ids
+   * @return true if this occurrence of the event should be logged: always, for an
+   * unsampled event at or above the level
+   */
+  boolean isSampled(int logLevel, int event) {
+    if (logLevel < level) {
+      return false;
+    }
+    if (level <= Log.VERBOSE || event >= SAMPLED_EVENT_COUNT) {
+      return true;
+    }
+    return (eventCounts.getAndIncrement(event) % SAMPLE_INTERVAL) == 0;
+  }
+
+  void log(int logLevel, String tag, String message) {
+    if (logLevel >= level) {
+      enqueue(logLevel, tag, message);
+    }
+  }
+
+  void log(int logLevel, String tag, String message, Object arg) {
+    if (logLevel >= level) {
+      enqueue(logLevel, tag, message + arg);
+    }
+  }
+
+  void log(int logLevel, String tag, String message, Object arg1, String message2,
+      Object arg2) {
+    if (logLevel >= level) {
+      enqueue(logLevel, tag, message + arg1 + message2 + arg2);
+    }
+  }
+
+  /**
+   * Log an event; sampled if it is one of the WebViewClient's per-resource events.
+   */
+  void event(int logLevel, int event, String tag, String message, Object arg) {
+    if (isSampled(logLevel, event)) {
+      enqueue(logLevel, tag, message + arg);
+    }
+  }
+
+  void event(int logLevel, int event, String tag, String message, Object arg1, String message2,
+      Object arg2) {
+    if (isSampled(logLevel, event)) {
+      enqueue(logLevel, tag, message + arg1 + message2 + arg2);
+    }
+  }
+
+  private void enqueue(int logLevel, String tag, String message) {
+    long now = System.currentTimeMillis();
+    boolean schedule = false;
+    synchronized (this) {
+      int idx = (head + count) % RING_SIZE;
+      if (count == RING_SIZE) {
+        // overwrite the oldest entry
+        head = (head + 1) % RING_SIZE;
+        ++dropped;
+      } else {
+        ++count;
+      }
+      levels[idx] = logLevel;
+      tags[idx] = tag;
+      messages[idx] = message;
+      times[idx] = now;
+      if (!flushScheduled) {
+        flushScheduled = true;
+        schedule = true;
+      }
+    }
+    if (schedule) {
+      flusher.execute(flushTask);
+    }
+  }
+
+  private void flush() {
+    WebLoggerIf logger = WebLogger.getLogger(appName);
+    for (; ; ) {
+      int entryLevel = Log.INFO;
+      String tag = null;
+      String message = null;
+      long time = 0L;
+      int droppedCount;
+      synchronized (this) {
+        droppedCount = dropped;
+        dropped = 0;
+        if (count == 0) {
+          flushScheduled = false;
+        } else {
+          entryLevel = levels[head];
+          tag = tags[head];
+          message = messages[head];
+          time = times[head];
+          tags[head] = null;
+          messages[head] = null;
+          head = (head + 1) % RING_SIZE;
+          --count;
+        }
+      }
+      if (droppedCount != 0) {
+        logger.w("BridgeLog", "dropped " + droppedCount + " log messages");
+      }
+      if (message == null) {
+        return;
+      }
+      write(logger, entryLevel, tag, message + " ms: " + time);
+    }
+  }
+
+  private static void write(WebLoggerIf logger, int entryLevel, String tag, String message) {
+    switch (entryLevel) {
+    case Log.VERBOSE:
+      logger.v(tag, message);
+      break;
+    case Log.DEBUG:
+      logger.d(tag, message);
+      break;
+    case Log.INFO:
+      logger.i(tag, message);
+      break;
+    case Log.WARN:
+      logger.w(tag, message);
+      break;
+    default:
+      logger.e(tag, message);
+      break;
+    }
+  }
+}
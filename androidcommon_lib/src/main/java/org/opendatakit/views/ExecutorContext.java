@@ -14,24 +14,33 @@
 
 package org.opendatakit.views;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import org.opendatakit.activities.IOdkDataActivity;
+import org.opendatakit.data.utilities.TableChange;
+import org.opendatakit.data.utilities.TableChangeBus;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.listener.DatabaseConnectionListener;
+import org.opendatakit.listener.TableChangeListener;
 import org.opendatakit.logging.WebLogger;
-import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -39,10 +48,61 @@ import java.util.concurrent.TimeUnit;
  */
 public class ExecutorContext implements DatabaseConnectionListener {
   private static final String TAG = "ExecutorContext";
+
+  /**
+   * Prefetched view data older than this is not handed to getViewData().
+   */
+  private static final long PREFETCH_MAX_AGE_MS = 30000L;
+
+  /**
+   * Default time that an addCheckpoint is held back so that later checkpoints of the
+   * same row can be merged into it. 0: checkpoints are written as they are requested;
+   * the activity opts in to merging with setCheckpointWriteBehind().
+   */
+  public static final long CHECKPOINT_WRITE_BEHIND_MS = 0L;
+
+  /**
+   * When idle compaction is enabled (see {@link #setIdleCompaction(boolean)}), tables
+   * that have had checkpoints added are compacted once the context has been idle
+   * for this long.
+   */
+  private static final long IDLE_COMPACTION_DELAY_MS = 60000L;
+
+  /**
+   * Fires the held-back checkpoint writes and idle compactions of all contexts.
+   */
+  private static final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ExecutorContext-timers");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * Notified when an asynchronous shutdown of the context has completed.
+   */
+  public interface ShutdownListener {
+    /**
+     * Called on the worker thread once the queued writes have run and the database
+     * connections of the context have been closed.
+     *
+     * @param elapsedMs the time from the shutdown request to its completion
+     */
+    void shutdownComplete(long elapsedMs);
+  }
+
     private static ExecutorContext currentContext = null;
 
-    private static void updateCurrentContext(ExecutorContext ctxt) {
+    private static synchronized void updateCurrentContext(ExecutorContext ctxt) {
         if ( currentContext != null ) {
+            if ( currentContext.activity == ctxt.activity ) {
+              // the page is unchanged -- keep its live queries
+              ctxt.adoptSubscriptions(currentContext);
+              ctxt.adoptPendingCheckpoints(currentContext);
+            }
             ctxt.queueRequest(new ExecutorRequest(currentContext));
         }
         currentContext = ctxt;
@@ -58,7 +118,10 @@ public class ExecutorContext implements DatabaseConnectionListener {
 
   /**
    * The mutex used to guard all of the private data structures:
-   *   worker, workQueue, activeConnections, mCacheOrderedDefns
+   *   worker, workQueue, activeConnections, mCacheOrderedDefns, mCachedColumnTypes,
+   *   mPrefetches, mSubscriptions, mPendingCheckpoints, mCoalescedCallbacks,
+   *   mCheckpointedTables, idleCompaction, the compaction counters,
+   *   shutdownRequestedTime, shutdownLatencyMs, shutdownListeners, boundViews
    */
   private final Object mutex = new Object();
 
@@ -86,9 +149,71 @@ public class ExecutorContext implements DatabaseConnectionListener {
 
     private Map<String, DbHandle> activeConnections = new HashMap<String, DbHandle>();
     private Map<String, OrderedColumns> mCachedOrderedDefns = new HashMap<String, OrderedColumns>();
+    private Map<String, TypeColumnWebIfCache> mCachedColumnTypes = new HashMap<String, TypeColumnWebIfCache>();
+    /**
+     * token => prefetched view data
+     */
+    private Map<String, ViewDataPrefetch> mPrefetches = new HashMap<String, ViewDataPrefetch>();
+    /**
+     * subscription id => live query
+     */
+    private Map<String, QuerySubscription> mSubscriptions = new HashMap<String, QuerySubscription>();
+    /**
+     * tableId/rowId => held-back addCheckpoint requests
+     */
+    private Map<String, PendingCheckpoint> mPendingCheckpoints = new LinkedHashMap<String, PendingCheckpoint>();
+    /**
+     * callbackJSON of a merged addCheckpoint => callbackJSONs of the requests merged into it
+     */
+    private Map<String, List<String>> mCoalescedCallbacks = new HashMap<String, List<String>>();
+
+    private volatile long checkpointWriteBehindMs = CHECKPOINT_WRITE_BEHIND_MS;
+    private volatile boolean idleCompactionEnabled = false;
+
+    /**
+     * tableIds that have had checkpoints added since they were last compacted
+     */
+    private Set<String> mCheckpointedTables = new HashSet<String>();
+    private ScheduledFuture<?> idleCompaction = null;
+    private int compactionCount = 0;
+    private int compactedRowCount = 0;
+    private int reclaimedCheckpointCount = 0;
+    private long compactionElapsedMs = 0L;
+
+    /**
+     * When shutdownWorker() was first called, or -1 if it has not been.
+     */
+    private long shutdownRequestedTime = -1L;
+    /**
+     * How long the shutdown took, or -1 if it has not completed.
+     */
+    private long shutdownLatencyMs = -1L;
+    private List<ShutdownListener> shutdownListeners = new ArrayList<ShutdownListener>();
+
+    /**
+     * Number of web views whose odkData interface is using this context.
+     */
+    private int boundViews = 0;
+
+    /**
+     * Receives the writes made through any ExecutorContext or native activity of the app.
+     */
+    private final TableChangeListener tableChangeListener = new TableChangeListener() {
+      @Override
+      public void tableChanged(TableChange change) {
+        if ( change.getOperation() == TableChange.Operation.SCHEMA ) {
+          synchronized (mutex) {
+            mCachedOrderedDefns.remove(change.getTableId());
+            mCachedColumnTypes.remove(change.getTableId());
+          }
+        }
+        ExecutorContext.this.tableChanged(change.getTableId());
+      }
+    };
 
     private ExecutorContext(IOdkDataActivity fragment) {
         this.activity = fragment;
+        TableChangeBus.get().register(fragment.getAppName(), tableChangeListener);
         updateCurrentContext(this);
     }
 
@@ -101,6 +226,32 @@ public class ExecutorContext implements DatabaseConnectionListener {
       }
     }
 
+  /**
+   * Record that the odkData interface of a web view is using this context.
+   */
+  void attachView() {
+    synchronized (mutex) {
+      ++boundViews;
+    }
+  }
+
+  /**
+   * Record that the odkData interface of a web view has stopped using this
+   * context because the view was released to the ODKWebViewPool. Once no view
+   * is using it, the context is shut down; a view taken from the pool later
+   * obtains the current context of its new activity.
+   */
+  void detachView() {
+    boolean unused;
+    synchronized (mutex) {
+      unused = (--boundViews <= 0);
+    }
+    if ( unused ) {
+      WebLogger.getLogger(getAppName()).i(TAG, "detachView: last view released -- shutting down");
+      shutdownWorker();
+    }
+  }
+
   /**
    * if we are not shutting down and there is work to be done then fire an ExecutorProcessor.
    */
@@ -117,19 +268,565 @@ public class ExecutorContext implements DatabaseConnectionListener {
 
   /**
    * if we are not shutting down then queue a request and fire an ExecutorProcessor.
+   * <p>
+   * addCheckpoint requests are held back for the write-behind window (see
+   * {@link #setCheckpointWriteBehind(long)}). Any other request of the same table is
+   * queued after them.
+   *
    * @param request
    */
   public void queueRequest(ExecutorRequest request) {
+      if ( request.executorRequestType == ExecutorRequestType.USER_TABLE_ADD_CHECKPOINT &&
+           checkpointWriteBehindMs > 0L && deferCheckpoint(request) ) {
+        return;
+      }
       // processor is most often NOT discarded
       ExecutorProcessor processor = activity.newExecutorProcessor(this);
+      boolean rejected = false;
       synchronized (mutex) {
         if ( !worker.isShutdown() && !worker.isTerminated()) {
+          // the request must see any held-back checkpoints
+          flushPendingCheckpoints(request);
           // push the request
-          workQueue.add(request);
+          enqueue(request);
+          worker.execute(processor);
+        } else {
+          rejected = true;
+        }
+      }
+      if ( rejected ) {
+        reportError(request.callbackJSON, request.callerID, null,
+            IllegalStateException.class.getName() + ": the database context has been shut down");
+      }
+    }
+
+  /**
+   * Must be called within the mutex.
+   *
+   * @param request
+   */
+  private void enqueue(ExecutorRequest request) {
+    if ( !request.executorRequestType.isReadOnly() ) {
+      // the prefetched view data may no longer reflect the database
+      dropUnclaimedPrefetches(null);
+    }
+    if ( request.executorRequestType == ExecutorRequestType.USER_TABLE_ADD_CHECKPOINT ) {
+      mCheckpointedTables.add(request.tableId);
+    }
+    if ( idleCompaction != null ) {
+      // no longer idle
+      idleCompaction.cancel(false);
+      idleCompaction = null;
+    }
+    workQueue.add(request);
+  }
+
+  /**
+   * Once the work queue has drained, schedule a compaction of the checkpoints of the
+   * tables that have had checkpoints added. It is cancelled if any request is queued
+   * before it fires. Must be called within the mutex.
+   */
+  private void scheduleIdleCompaction() {
+    if ( !idleCompactionEnabled || mCheckpointedTables.isEmpty() || idleCompaction != null ||
+         worker.isShutdown() || worker.isTerminated() ) {
+      return;
+    }
+    idleCompaction = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        queueIdleCompaction();
+      }
+    }, IDLE_COMPACTION_DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private void queueIdleCompaction() {
+    ExecutorProcessor processor = activity.newExecutorProcessor(this);
+    synchronized (mutex) {
+      idleCompaction = null;
+      if ( worker.isShutdown() || worker.isTerminated() || !workQueue.isEmpty() ||
+           !mPendingCheckpoints.isEmpty() ) {
+        return;
+      }
+      List<String> tableIds = new ArrayList<String>(mCheckpointedTables);
+      mCheckpointedTables.clear();
+      for ( String tableId : tableIds ) {
+        enqueue(new ExecutorRequest(ExecutorRequestType.USER_TABLE_COMPACT_CHECKPOINTS, tableId,
+            null, null, null, null, null));
+      }
+      worker.execute(processor);
+    }
+  }
+
+  /**
+   * Record the outcome of a checkpoint compaction.
+   *
+   * @param compactedRows  rows whose checkpoints were compacted
+   * @param reclaimed      checkpoints removed
+   * @param elapsedMs
+   */
+  void recordCheckpointCompaction(int compactedRows, int reclaimed, long elapsedMs) {
+    synchronized (mutex) {
+      ++compactionCount;
+      compactedRowCount += compactedRows;
+      reclaimedCheckpointCount += reclaimed;
+      compactionElapsedMs += elapsedMs;
+    }
+  }
+
+  /**
+   * @return the totals of the checkpoint compactions run by this context:
+   * compactionCount, compactedRowCount, reclaimedCheckpointCount and compactionElapsedMs
+   */
+  public Map<String, Object> getCheckpointCompactionMetrics() {
+    Map<String, Object> metrics = new HashMap<String, Object>();
+    synchronized (mutex) {
+      metrics.put("compactionCount", compactionCount);
+      metrics.put("compactedRowCount", compactedRowCount);
+      metrics.put("reclaimedCheckpointCount", reclaimedCheckpointCount);
+      metrics.put("compactionElapsedMs", compactionElapsedMs);
+    }
+    return metrics;
+  }
+
+  /**
+   * Set the time that an addCheckpoint is held back so that later checkpoints of the
+   * same row can be merged into it. The window starts with the first held-back
+   * checkpoint; later ones do not extend it.
+   *
+   * @param windowMs 0 to write every checkpoint as it is requested
+   */
+  public void setCheckpointWriteBehind(long windowMs) {
+    checkpointWriteBehindMs = windowMs;
+    if ( windowMs <= 0L ) {
+      ExecutorProcessor processor = activity.newExecutorProcessor(this);
+      synchronized (mutex) {
+        if ( !worker.isShutdown() && !worker.isTerminated() && !mPendingCheckpoints.isEmpty() ) {
+          flushPendingCheckpoints(null);
           worker.execute(processor);
         }
       }
     }
+  }
+
+  /**
+   * Enable or disable the compaction of the checkpoints of the tables that have had
+   * checkpoints added, once the context has been idle for IDLE_COMPACTION_DELAY_MS.
+   * Disabled by default; pages can always call odkData.compactCheckpoints().
+   *
+   * @param enabled
+   */
+  public void setIdleCompaction(boolean enabled) {
+    idleCompactionEnabled = enabled;
+    synchronized (mutex) {
+      if ( enabled ) {
+        if ( workQueue.isEmpty() ) {
+          scheduleIdleCompaction();
+        }
+      } else if ( idleCompaction != null ) {
+        idleCompaction.cancel(false);
+        idleCompaction = null;
+      }
+    }
+  }
+
+  /**
+   * Hold back an addCheckpoint, merging it into a held-back checkpoint of the same row.
+   *
+   * @param request
+   * @return false if the request was not held back and should be queued
+   */
+  private boolean deferCheckpoint(ExecutorRequest request) {
+    synchronized (mutex) {
+      if ( worker.isShutdown() || worker.isTerminated() ) {
+        return false;
+      }
+      String key = PendingCheckpoint.getKey(request);
+      PendingCheckpoint pending = mPendingCheckpoints.get(key);
+      try {
+        if ( pending == null ) {
+          pending = new PendingCheckpoint(request);
+          mPendingCheckpoints.put(key, pending);
+          scheduleCheckpointFlush(pending);
+        } else if ( pending.isSameCaller(request) ) {
+          pending.merge(request);
+        } else {
+          // queueRequest will write the held-back checkpoint first
+          return false;
+        }
+        return true;
+      } catch (IOException e) {
+        // let the ExecutorProcessor report the malformed request
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Must be called within the mutex.
+   */
+  private void scheduleCheckpointFlush(final PendingCheckpoint pending) {
+    pending.flush = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flushPendingCheckpoint(pending);
+      }
+    }, checkpointWriteBehindMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void flushPendingCheckpoint(PendingCheckpoint pending) {
+    ExecutorProcessor processor = activity.newExecutorProcessor(this);
+    synchronized (mutex) {
+      if ( mPendingCheckpoints.get(pending.key) != pending ) {
+        // already written
+        return;
+      }
+      mPendingCheckpoints.remove(pending.key);
+      if ( !worker.isShutdown() && !worker.isTerminated() ) {
+        enqueueCheckpoint(pending);
+        worker.execute(processor);
+      }
+    }
+  }
+
+  /**
+   * Queue the held-back checkpoints that must be written before the next request.
+   * Must be called within the mutex.
+   *
+   * @param next the next request, or null to queue all held-back checkpoints
+   */
+  private void flushPendingCheckpoints(ExecutorRequest next) {
+    if ( mPendingCheckpoints.isEmpty() ) {
+      return;
+    }
+    // an arbitrary query can read any table
+    boolean all = (next == null || next.tableId == null ||
+        next.executorRequestType == ExecutorRequestType.ARBITRARY_QUERY ||
+        next.executorRequestType == ExecutorRequestType.LOCAL_TABLE_ARBITRARY_QUERY);
+    Iterator<PendingCheckpoint> iter = mPendingCheckpoints.values().iterator();
+    while (iter.hasNext()) {
+      PendingCheckpoint pending = iter.next();
+      if ( all || next.tableId.equals(pending.tableId) ) {
+        iter.remove();
+        if ( pending.flush != null ) {
+          pending.flush.cancel(false);
+        }
+        enqueueCheckpoint(pending);
+      }
+    }
+  }
+
+  /**
+   * Must be called within the mutex.
+   */
+  private void enqueueCheckpoint(PendingCheckpoint pending) {
+    ExecutorRequest request;
+    try {
+      request = pending.toRequest();
+    } catch (IOException e) {
+      WebLogger.getLogger(getAppName()).e(TAG, "should never have a conversion error");
+      WebLogger.getLogger(getAppName()).printStackTrace(e);
+      throw new IllegalStateException("should never have a conversion error");
+    }
+    if ( !pending.getSupersededCallbacks().isEmpty() ) {
+      mCoalescedCallbacks.put(request.callbackJSON, pending.getSupersededCallbacks());
+    }
+    enqueue(request);
+  }
+
+  private void adoptPendingCheckpoints(ExecutorContext oldContext) {
+    List<PendingCheckpoint> pendings;
+    synchronized (oldContext.mutex) {
+      pendings = new ArrayList<PendingCheckpoint>(oldContext.mPendingCheckpoints.values());
+      oldContext.mPendingCheckpoints.clear();
+    }
+    synchronized (mutex) {
+      for ( PendingCheckpoint pending : pendings ) {
+        if ( pending.flush != null ) {
+          pending.flush.cancel(false);
+        }
+        mPendingCheckpoints.put(pending.key, pending);
+        scheduleCheckpointFlush(pending);
+      }
+    }
+  }
+
+  /**
+   * Deliver the response of a merged addCheckpoint to the requests that were merged into it.
+   *
+   * @param callbackJSON
+   * @param responseStr
+   * @param callerID
+   */
+  private void signalCoalescedResponses(String callbackJSON, String responseStr,
+      String callerID) {
+    List<String> callbacks;
+    synchronized (mutex) {
+      if ( mCoalescedCallbacks.isEmpty() ) {
+        return;
+      }
+      callbacks = mCoalescedCallbacks.remove(callbackJSON);
+    }
+    if ( callbacks == null ) {
+      return;
+    }
+    for ( String callback : callbacks ) {
+      try {
+        activity.signalResponseAvailable(
+            ResponseJsonWriter.replaceCallbackJSON(responseStr, callbackJSON, callback), callerID);
+      } catch (IOException e) {
+        WebLogger.getLogger(getAppName()).e(TAG, "should never have a conversion error");
+        WebLogger.getLogger(getAppName()).printStackTrace(e);
+        throw new IllegalStateException("should never have a conversion error");
+      }
+    }
+  }
+
+  /**
+   * Queue a view query on behalf of a page that is still loading. The
+   * response is held until it is claimed by {@link #claimPrefetch}.
+   *
+   * @param prefetch
+   */
+  void queuePrefetch(ViewDataPrefetch prefetch) {
+    synchronized (mutex) {
+      // a reload of the page replaces any earlier prefetch
+      dropUnclaimedPrefetches(prefetch.callerID);
+      mPrefetches.put(prefetch.token, prefetch);
+    }
+    queueRequest(prefetch.request);
+  }
+
+  /**
+   * Hand a matching prefetched view query over to the getViewData() call of the
+   * javascript. If the response has already arrived, it is delivered immediately;
+   * otherwise it will be delivered when it arrives. If the prefetched query
+   * fails, the request is queued then.
+   *
+   * @param request the view query of the getViewData() call
+   * @return true if a prefetch was claimed and the caller should not issue the query
+   */
+  boolean claimPrefetch(ExecutorRequest request) {
+    String callerID = request.callerID;
+    String responseStr = null;
+    synchronized (mutex) {
+      ViewDataPrefetch found = null;
+      long now = System.currentTimeMillis();
+      Iterator<ViewDataPrefetch> iter = mPrefetches.values().iterator();
+      while (iter.hasNext()) {
+        ViewDataPrefetch prefetch = iter.next();
+        if ( prefetch.claimedRequest != null ||
+            (callerID == null ? prefetch.callerID != null : !callerID.equals(prefetch.callerID)) ) {
+          continue;
+        }
+        // any other unclaimed prefetch for this caller is stale or of no use
+        if ( found == null && prefetch.matches(request) &&
+            now - prefetch.createdTime <= PREFETCH_MAX_AGE_MS ) {
+          found = prefetch;
+        } else {
+          iter.remove();
+        }
+      }
+      if ( found == null ) {
+        return false;
+      }
+      found.claimedRequest = request;
+      if ( found.response != null ) {
+        mPrefetches.remove(found.token);
+        try {
+          responseStr = found.getClaimedResponse();
+        } catch (IOException e) {
+          WebLogger.getLogger(getAppName()).e(TAG, "should never have a conversion error");
+          WebLogger.getLogger(getAppName()).printStackTrace(e);
+          throw new IllegalStateException("should never have a conversion error");
+        }
+      }
+    }
+    if ( responseStr != null ) {
+      activity.signalResponseAvailable(responseStr, callerID);
+    }
+    return true;
+  }
+
+  /**
+   * Discard the prefetches that have not been claimed. Their queries still
+   * run, but the responses are dropped.
+   *
+   * @param callerID if not null, only discard the prefetches for this caller.
+   */
+  void dropUnclaimedPrefetches(String callerID) {
+    synchronized (mutex) {
+      Iterator<ViewDataPrefetch> iter = mPrefetches.values().iterator();
+      while (iter.hasNext()) {
+        ViewDataPrefetch prefetch = iter.next();
+        if ( prefetch.claimedRequest == null &&
+            (callerID == null || callerID.equals(prefetch.callerID)) ) {
+          iter.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Discard a prefetched view query that failed. The getViewData() call that
+   * claimed it, if any, issues its own query instead, and a later call will
+   * not find the prefetch.
+   *
+   * @param callbackJSON the token of the prefetch
+   * @return the request of the claiming getViewData() call, or null if unclaimed
+   */
+  private ExecutorRequest dropFailedPrefetch(String callbackJSON) {
+    synchronized (mutex) {
+      ViewDataPrefetch prefetch = mPrefetches.remove(callbackJSON);
+      return (prefetch == null) ? null : prefetch.claimedRequest;
+    }
+  }
+
+  /**
+   * Route the response of a prefetched view query.
+   *
+   * @param callbackJSON
+   * @param responseStr
+   * @return the response to deliver to the javascript, or null if it is held or discarded.
+   */
+  private String routePrefetchResponse(String callbackJSON, String responseStr) {
+    synchronized (mutex) {
+      ViewDataPrefetch prefetch = mPrefetches.get(callbackJSON);
+      if ( prefetch == null ) {
+        // dropped -- nobody is waiting for this response
+        return null;
+      }
+      prefetch.response = responseStr;
+      if ( prefetch.claimedRequest == null ) {
+        return null;
+      }
+      mPrefetches.remove(callbackJSON);
+      try {
+        return prefetch.getClaimedResponse();
+      } catch (IOException e) {
+        WebLogger.getLogger(getAppName()).e(TAG, "should never have a conversion error");
+        WebLogger.getLogger(getAppName()).printStackTrace(e);
+        throw new IllegalStateException("should never have a conversion error");
+      }
+    }
+  }
+
+  /**
+   * Register a live query and queue it to deliver the initial result.
+   *
+   * @param subscription
+   */
+  void subscribe(QuerySubscription subscription) {
+    synchronized (mutex) {
+      mSubscriptions.put(subscription.id, subscription);
+      subscription.refreshQueued = true;
+    }
+    queueRequest(subscription.request);
+  }
+
+  /**
+   * Release a live query. A refresh that is already running will still be delivered.
+   *
+   * @param subscriptionId
+   * @return false if there was no such subscription
+   */
+  boolean unsubscribe(String subscriptionId) {
+    synchronized (mutex) {
+      QuerySubscription subscription = mSubscriptions.remove(subscriptionId);
+      if ( subscription == null ) {
+        return false;
+      }
+      if ( subscription.refreshQueued ) {
+        // the head of the queue may be running; leave it alone
+        int idx = workQueue.lastIndexOf(subscription.request);
+        if ( idx > 0 ) {
+          workQueue.remove(idx);
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Drop the live queries of a caller whose page has been replaced or released.
+   * The same page may be using a context that replaced this one and adopted them.
+   *
+   * @param callerID the containerFragmentID of the page
+   */
+  void dropSubscriptions(String callerID) {
+    dropOwnSubscriptions(callerID);
+    ExecutorContext successor = getCurrentContext();
+    if ( successor != null && successor != this && successor.activity == activity ) {
+      successor.dropOwnSubscriptions(callerID);
+    }
+  }
+
+  private void dropOwnSubscriptions(String callerID) {
+    List<String> dropped = new ArrayList<String>();
+    synchronized (mutex) {
+      for ( QuerySubscription subscription : mSubscriptions.values() ) {
+        if ( callerID.equals(subscription.request.callerID) ) {
+          dropped.add(subscription.id);
+        }
+      }
+    }
+    for ( String subscriptionId : dropped ) {
+      unsubscribe(subscriptionId);
+    }
+  }
+
+  private static synchronized ExecutorContext getCurrentContext() {
+    return currentContext;
+  }
+
+  /**
+   * Take over the live queries of the context this one replaces. Called with the
+   * class lock held, so a concurrent dropSubscriptions() either removes them here
+   * first or finds them in this context.
+   */
+  private void adoptSubscriptions(ExecutorContext oldContext) {
+    List<QuerySubscription> subscriptions;
+    synchronized (oldContext.mutex) {
+      subscriptions = new ArrayList<QuerySubscription>(oldContext.mSubscriptions.values());
+      // changes published before the old context is released must not refresh these there
+      oldContext.mSubscriptions.clear();
+    }
+    synchronized (mutex) {
+      for ( QuerySubscription subscription : subscriptions ) {
+        // the old context will fail any queued refresh
+        subscription.refreshQueued = false;
+        mSubscriptions.put(subscription.id, subscription);
+      }
+    }
+  }
+
+  /**
+   * Called after a write to the table has completed, whether through this or another
+   * ExecutorContext of the app (see {@link TableChangeBus}). Queues one refresh of each live
+   * query of the table, unless a refresh is already waiting in the queue. Since the
+   * queue is processed in order, a burst of writes results in a single refresh that
+   * runs after them.
+   *
+   * @param tableId
+   */
+  void tableChanged(String tableId) {
+    List<ExecutorRequest> refreshes = null;
+    synchronized (mutex) {
+      for ( QuerySubscription subscription : mSubscriptions.values() ) {
+        if ( !subscription.refreshQueued && tableId.equals(subscription.tableId) ) {
+          subscription.refreshQueued = true;
+          if ( refreshes == null ) {
+            refreshes = new ArrayList<ExecutorRequest>();
+          }
+          refreshes.add(subscription.request);
+        }
+      }
+    }
+    if ( refreshes != null ) {
+      for ( ExecutorRequest request : refreshes ) {
+        queueRequest(request);
+      }
+    }
+  }
 
   /**
    * @return the next ExecutorRequest or null if the queue is empty
@@ -154,39 +851,151 @@ public class ExecutorContext implements DatabaseConnectionListener {
     ExecutorProcessor processor = (trigger ? activity.newExecutorProcessor(this) : null);
     synchronized (mutex) {
       if ( !workQueue.isEmpty() ) {
-        workQueue.removeFirst();
+        ExecutorRequest done = workQueue.removeFirst();
+        for ( QuerySubscription subscription : mSubscriptions.values() ) {
+          if ( subscription.request == done ) {
+            subscription.refreshQueued = false;
+          }
+        }
       }
       if ( !worker.isShutdown() && !worker.isTerminated() && trigger && !workQueue.isEmpty() ) {
         // signal that we have work...
         worker.execute(processor);
       }
+      if ( workQueue.isEmpty() ) {
+        scheduleIdleCompaction();
+      }
     }
   }
 
     /**
-     * shutdown the worker. This is done within the mutex to ensure that the above methods
-     * never throw an unexpected state exception.
+     * Shut down the worker without waiting for it.
+     *
+     * @see #shutdownWorker(ShutdownListener)
      */
     void shutdownWorker() {
-      WebLogger.getLogger(currentContext.getAppName()).i(TAG, "shutdownWorker - shutting down dataif Executor");
-      Throwable t = null;
+      shutdownWorker(null);
+    }
+
+    /**
+     * Shut down the worker without waiting for it. This may be called on the UI thread.
+     * <p>
+     * The context is marked closed: new requests are rejected and the queued reads are
+     * cancelled. The queued writes (including any held-back checkpoints) still run. Then,
+     * on the worker thread, the database connections of the context are closed and the
+     * listener is notified.
+     *
+     * @param listener notified when the shutdown completes. May be null.
+     */
+    public void shutdownWorker(ShutdownListener listener) {
+      WebLogger.getLogger(getAppName()).i(TAG, "shutdownWorker - shutting down dataif Executor");
+      TableChangeBus.get().unregister(getAppName(), tableChangeListener);
+      List<ExecutorRequest> cancelled = new ArrayList<ExecutorRequest>();
+      long completedLatency = -1L;
       synchronized (mutex) {
-        if ( !worker.isShutdown() && !worker.isTerminated() ) {
+        if ( shutdownRequestedTime == -1L ) {
+          shutdownRequestedTime = System.currentTimeMillis();
+          flushPendingCheckpoints(null);
+          if ( idleCompaction != null ) {
+            idleCompaction.cancel(false);
+            idleCompaction = null;
+          }
+          mCheckpointedTables.clear();
+          mSubscriptions.clear();
+          dropUnclaimedPrefetches(null);
+          // cancel the queued reads -- the head of the queue may be running
+          Iterator<ExecutorRequest> iter = workQueue.iterator();
+          if ( iter.hasNext() ) {
+            iter.next();
+          }
+          while (iter.hasNext()) {
+            ExecutorRequest request = iter.next();
+            if ( request.executorRequestType.isReadOnly() ) {
+              iter.remove();
+              cancelled.add(request);
+            }
+          }
+          // runs after the processors that have already been submitted
+          worker.execute(new Runnable() {
+            @Override
+            public void run() {
+              finishShutdown();
+            }
+          });
           worker.shutdown();
         }
+        if ( listener != null ) {
+          if ( shutdownLatencyMs == -1L ) {
+            shutdownListeners.add(listener);
+          } else {
+            completedLatency = shutdownLatencyMs;
+          }
+        }
+      }
+
+      String errorMessage = ServicesAvailabilityException.class.getName() +
+          ": shutdownWorker - request cancelled";
+      for ( ExecutorRequest request : cancelled ) {
+        reportError(request.callbackJSON, request.callerID, null, errorMessage);
+      }
+      WebLogger.getLogger(getAppName()).i(TAG, "shutdownWorker - cancelled " + cancelled.size()
+          + " queued reads");
+      if ( completedLatency != -1L ) {
+        listener.shutdownComplete(completedLatency);
+      }
+    }
+
+    /**
+     * The last task of the worker. Runs the writes that are still queued, closes the
+     * database connections and notifies the shutdown listeners.
+     */
+    private void finishShutdown() {
+      // once shut down, popRequest no longer fires processors for the rest of the queue
+      for (;;) {
+        ExecutorRequest request = peekRequest();
+        if ( request == null ) {
+          break;
+        }
+        if ( getDatabase() != null ) {
+          activity.newExecutorProcessor(this).run();
+        }
+        if ( peekRequest() == request ) {
+          // not run
+          reportError(request.callbackJSON, request.callerID, null,
+              ServicesAvailabilityException.class.getName() +
+                  ": shutdownWorker - database unavailable");
+          popRequest(false);
+        }
+      }
+
+      int activeConns = closeActiveConnections("shutdownWorker");
+
+      long elapsed;
+      List<ShutdownListener> listeners;
+      synchronized (mutex) {
+        elapsed = System.currentTimeMillis() - shutdownRequestedTime;
+        shutdownLatencyMs = elapsed;
+        listeners = new ArrayList<ShutdownListener>(shutdownListeners);
+        shutdownListeners.clear();
+      }
+      WebLogger.getLogger(getAppName()).i(TAG, "shutdownWorker - dataif Executor has been shut down in "
+          + elapsed + " ms (closed " + activeConns + " dbHandles)");
+      for ( ShutdownListener listener : listeners ) {
         try {
-          worker.awaitTermination(3000L, TimeUnit.MILLISECONDS);
-        } catch (Throwable th) {
-          t = th;
+          listener.shutdownComplete(elapsed);
+        } catch (RuntimeException e) {
+          WebLogger.getLogger(getAppName()).printStackTrace(e);
         }
       }
+    }
 
-      if ( t != null ) {
-        WebLogger.getLogger(currentContext.getAppName()).w(TAG,
-                "shutdownWorker - dataif Executor threw exception while shutting down");
-        WebLogger.getLogger(currentContext.getAppName()).printStackTrace(t);
+    /**
+     * @return the time the shutdown of this context took, or -1 if it has not completed
+     */
+    public long getShutdownLatencyMs() {
+      synchronized (mutex) {
+        return shutdownLatencyMs;
       }
-      WebLogger.getLogger(currentContext.getAppName()).i(TAG, "shutdownWorker - dataif Executor has been shut down.");
     }
 
   /**
@@ -211,7 +1020,7 @@ public class ExecutorContext implements DatabaseConnectionListener {
       }
     }
     if ( alreadyExists ) {
-      WebLogger.getLogger(currentContext.getAppName()).e(TAG,"transaction id " + transId + " already registered!");
+      WebLogger.getLogger(getAppName()).e(TAG,"transaction id " + transId + " already registered!");
       throw new IllegalArgumentException("transaction id already registered!");
     }
   }
@@ -242,6 +1051,31 @@ public class ExecutorContext implements DatabaseConnectionListener {
   public void putOrderedColumns(String tableId, OrderedColumns orderedColumns) {
     synchronized (mutex) {
       mCachedOrderedDefns.put(tableId, orderedColumns);
+      mCachedColumnTypes.remove(tableId);
+    }
+  }
+
+  /**
+   * Get the column types for a result set of this table, reusing the
+   * types of the previous result set if it had the same columns.
+   *
+   * @param tableId
+   * @param orderedColumns
+   * @param baseTable
+   * @return the column types for the result set
+   */
+  public TypeColumnWebIfCache getTypeColumnWebIfCache(String tableId,
+      OrderedColumns orderedColumns, BaseTable baseTable) {
+    if ( tableId == null ) {
+      return new TypeColumnWebIfCache(orderedColumns, baseTable);
+    }
+    synchronized (mutex) {
+      TypeColumnWebIfCache cache = mCachedColumnTypes.get(tableId);
+      if ( cache == null || !cache.matches(orderedColumns, baseTable) ) {
+        cache = new TypeColumnWebIfCache(orderedColumns, baseTable);
+        mCachedColumnTypes.put(tableId, cache);
+      }
+      return cache;
     }
   }
 
@@ -265,16 +1099,42 @@ public class ExecutorContext implements DatabaseConnectionListener {
       // the most reasonable error is to report a service availablity error
       // the recovery options for that (abort) are the only reasonable ones when we are
       // releasing resources.
+      TableChangeBus.get().unregister(getAppName(), tableChangeListener);
+
+      synchronized (mutex) {
+        // held-back checkpoints are failed along with the rest of the queue
+        flushPendingCheckpoints(null);
+        if ( idleCompaction != null ) {
+          idleCompaction.cancel(false);
+          idleCompaction = null;
+        }
+        mCheckpointedTables.clear();
+      }
+
+      // if this context is being replaced by one for the same page (e.g., the database
+      // service reconnected), the queued reads are re-run there rather than failed.
+      ExecutorContext successor = getCurrentContext();
+      ExecutorContext replayContext = (successor != null && successor != this &&
+          successor.activity == activity && successor.isAlive()) ? successor : null;
+
    	  String errorMessage = ServicesAvailabilityException.class.getName() +
         ": releaseResources - shutting down worker (" + reason +
                    ") -- rolling back all transactions and releasing all connections";
+      int replayed = 0;
+      int failed = 0;
       for(;;) {
         ExecutorRequest req = peekRequest();
         if ( req == null ) {
           break;
         }
         try {
-           reportError(req.callbackJSON, req.callerID, null, errorMessage);
+           if ( replayContext != null && isReplayable(req) ) {
+             replayContext.replayRequest(req);
+             ++replayed;
+           } else {
+             reportError(req.callbackJSON, req.callerID, null, errorMessage);
+             ++failed;
+           }
         } catch(Exception e) {
            WebLogger.getLogger(getAppName()).w(TAG, "releaseResources - exception while "
                + "cancelling outstanding requests");
@@ -283,8 +1143,24 @@ public class ExecutorContext implements DatabaseConnectionListener {
         }
       }
 
-      WebLogger.getLogger(currentContext.getAppName()).i(TAG, "releaseResources - workQueue has been purged.");
+      WebLogger.getLogger(getAppName()).i(TAG, "releaseResources - workQueue has been purged. "
+          + replayed + " requests re-queued, " + failed + " failed.");
+
+      dropUnclaimedPrefetches(null);
 
+      int activeConns = closeActiveConnections("releaseResources");
+
+      WebLogger.getLogger(getAppName()).w(TAG,
+              "releaseResources - closed " + activeConns + " associated dbHandles");
+    }
+
+    /**
+     * Close the database connections registered with this context.
+     *
+     * @param caller for logging
+     * @return the number of connections closed
+     */
+    private int closeActiveConnections(String caller) {
       int activeConns = 0;
       for (;;) {
         String transId = getFirstActiveTransactionId();
@@ -295,42 +1171,76 @@ public class ExecutorContext implements DatabaseConnectionListener {
         removeActiveConnection(transId);
         if ( dbh == null ) {
           WebLogger.getLogger(getAppName()).w(TAG, "Unexpected failure to retrieve dbHandle for " + transId);
+          continue;
         }
-        UserDbInterface dbInterface = currentContext.getDatabase();
+        // these connections were opened through this context's activity, which may no
+        // longer be the activity of currentContext
+        UserDbInterface dbInterface = getDatabase();
         if ( dbInterface != null ) {
           try {
-            WebLogger.getLogger(currentContext.getAppName()).i(TAG, "releaseResources - closing dbHandle " + dbh.toString());
-            dbInterface.closeDatabase(currentContext.getAppName(), dbh);
+            WebLogger.getLogger(getAppName()).i(TAG, caller + " - closing dbHandle " + dbh.toString());
+            dbInterface.closeDatabase(getAppName(), dbh);
             activeConns++;
           } catch (Throwable t) {
-            WebLogger.getLogger(currentContext.getAppName()).w(TAG,
-                    "releaseResources - Exception thrown while trying to close dbHandle");
-            WebLogger.getLogger(currentContext.getAppName()).printStackTrace(t);
+            WebLogger.getLogger(getAppName()).w(TAG,
+                    caller + " - Exception thrown while trying to close dbHandle");
+            WebLogger.getLogger(getAppName()).printStackTrace(t);
           }
         }
       }
+      return activeConns;
+    }
 
-      WebLogger.getLogger(currentContext.getAppName()).w(TAG,
-              "releaseResources - closed " + activeConns + " associated dbHandles");
+  /**
+   * @param request
+   * @return true if the request can be re-run on another context without the caller
+   * noticing: it does not modify the database and is not bound to this context.
+   */
+  private static boolean isReplayable(ExecutorRequest request) {
+    return request.executorRequestType.isReadOnly() &&
+        !ViewDataPrefetch.isToken(request.callbackJSON);
+  }
+
+  /**
+   * Queue a read that was waiting in the queue of the context this one replaced.
+   *
+   * @param request
+   */
+  private void replayRequest(ExecutorRequest request) {
+    synchronized (mutex) {
+      for ( QuerySubscription subscription : mSubscriptions.values() ) {
+        if ( subscription.request == request ) {
+          if ( subscription.refreshQueued ) {
+            // already queued here
+            return;
+          }
+          subscription.refreshQueued = true;
+        }
+      }
     }
+    queueRequest(request);
+  }
 
     public void reportError(String callbackJSON, String callerID, String transId,
         String errorMessage) {
-      if ( callbackJSON != null ) {
-        Map<String, Object> response = new HashMap<String, Object>();
-        response.put("callbackJSON", callbackJSON);
-        response.put("error", errorMessage);
-        if (transId != null) {
-          response.put("transId", transId);
+      if ( ViewDataPrefetch.isToken(callbackJSON) ) {
+        // never hand a failed prefetch to getViewData(); let it run the query itself
+        ExecutorRequest claimed = dropFailedPrefetch(callbackJSON);
+        if ( claimed != null ) {
+          queueRequest(claimed);
         }
+        return;
+      }
+      if ( callbackJSON != null ) {
         String responseStr = null;
         try {
-          responseStr = ODKFileUtils.mapper.writeValueAsString(response);
-        } catch (JsonProcessingException e) {
-          WebLogger.getLogger(currentContext.getAppName()).e(TAG, "should never have a conversion error");
-          WebLogger.getLogger(currentContext.getAppName()).printStackTrace(e);
+          responseStr = ResponseJsonWriter.writeError(callbackJSON, transId, errorMessage);
+        } catch (IOException e) {
+          WebLogger.getLogger(getAppName()).e(TAG, "should never have a conversion error");
+          WebLogger.getLogger(getAppName()).printStackTrace(e);
           throw new IllegalStateException("should never have a conversion error");
         }
+        signalCoalescedResponses(callbackJSON, responseStr, callerID);
         activity.signalResponseAvailable(responseStr, callerID);
       }
     }
@@ -338,25 +1248,41 @@ public class ExecutorContext implements DatabaseConnectionListener {
 
     public void reportSuccess(String callbackJSON, String callerID, String transId,
         ArrayList<List<Object>> data, Map<String,Object> metadata) {
-        Map<String,Object> response = new HashMap<String,Object>();
-        response.put("callbackJSON", callbackJSON);
-        if ( transId != null ) {
-            response.put("transId", transId);
-        }
-        if ( data != null ) {
-            response.put("data", data);
-        }
-        if ( metadata != null ) {
-            response.put("metadata", metadata);
+      reportSuccess(null, callbackJSON, callerID, transId, data, metadata);
+    }
+
+    /**
+     * Report a successful response.
+     *
+     * @param tableId used to estimate the size of the response. May be null.
+     * @param callbackJSON
+     * @param callerID
+     * @param transId
+     * @param data
+     * @param metadata
+     */
+    public void reportSuccess(String tableId, String callbackJSON, String callerID, String transId,
+        ArrayList<List<Object>> data, Map<String,Object> metadata) {
+        if ( callbackJSON == null ) {
+          // e.g., an idle compaction -- nobody is waiting for the response
+          return;
         }
         String responseStr = null;
         try {
-            responseStr = ODKFileUtils.mapper.writeValueAsString(response);
-        } catch (JsonProcessingException e) {
-          WebLogger.getLogger(currentContext.getAppName()).e(TAG, "should never have a conversion error");
-          WebLogger.getLogger(currentContext.getAppName()).printStackTrace(e);
+            responseStr = ResponseJsonWriter.writeSuccess(tableId, callbackJSON, transId, data,
+                metadata);
+        } catch (IOException e) {
+          WebLogger.getLogger(getAppName()).e(TAG, "should never have a conversion error");
+          WebLogger.getLogger(getAppName()).printStackTrace(e);
           throw new IllegalStateException("should never have a conversion error");
         }
+        if ( ViewDataPrefetch.isToken(callbackJSON) ) {
+          responseStr = routePrefetchResponse(callbackJSON, responseStr);
+          if ( responseStr == null ) {
+            return;
+          }
+        }
+        signalCoalescedResponses(callbackJSON, responseStr, callerID);
         activity.signalResponseAvailable(responseStr, callerID);
     }
 
@@ -20,15 +20,21 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.data.utilities.ChoiceListCache;
+import org.opendatakit.data.utilities.TableChange;
+import org.opendatakit.data.utilities.TableChangeBus;
+import org.opendatakit.data.utilities.UserContext;
 import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TableMetaDataEntries;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.queries.ResumableQuery;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.UserDbInterface;
@@ -43,6 +49,7 @@ import org.sqlite.database.sqlite.SQLiteException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -62,6 +69,17 @@ public abstract class ExecutorProcessor implements Runnable {
    protected static final List<String> ADMIN_COLUMNS = DataTableColumns.getAdminColumns();
    protected static final String ID_COLUMN = "id";
 
+   /**
+    * The metadata columns that a compacted checkpoint carries over from the most
+    * recent checkpoint. These are the admin columns that convertJSON lets through,
+    * so addCheckpoint already passes them to insertCheckpointRowWithId.
+    */
+   private static final String[] CHECKPOINT_METADATA_COLUMNS = { DataTableColumns.FORM_ID,
+       DataTableColumns.LOCALE, DataTableColumns.SAVEPOINT_CREATOR,
+       DataTableColumns.DEFAULT_ACCESS, DataTableColumns.ROW_OWNER,
+       DataTableColumns.GROUP_READ_ONLY, DataTableColumns.GROUP_MODIFY,
+       DataTableColumns.GROUP_PRIVILEGED };
+
    private ExecutorContext context;
 
    private ExecutorRequest request;
@@ -154,6 +172,9 @@ public abstract class ExecutorProcessor implements Runnable {
          case USER_TABLE_DELETE_LAST_CHECKPOINT:
             deleteLastCheckpoint();
             break;
+         case USER_TABLE_COMPACT_CHECKPOINTS:
+            compactCheckpoints();
+            break;
          case LOCAL_TABLE_CREATE_TABLE:
             createLocalOnlyTableWithColumns();
             break;
@@ -252,7 +273,9 @@ public abstract class ExecutorProcessor implements Runnable {
       } finally {
          context.removeActiveConnection(transId);
          if (successful) {
-            context.reportSuccess(request.callbackJSON, request.callerID, null, data, metadata);
+            context.reportSuccess(request.tableId, request.callbackJSON, request.callerID, null,
+                data, metadata);
+            publishTableChange(metadata);
          } else {
             context.reportError(request.callbackJSON, request.callerID, null, exceptionString);
          }
@@ -260,6 +283,52 @@ public abstract class ExecutorProcessor implements Runnable {
       }
    }
 
+   /**
+    * Tell the rest of the app (including the live queries of this context) that the
+    * request changed its table.
+    *
+    * @param metadata the metadata of the response; supplies the new dataETag if present
+    */
+   private void publishTableChange(Map<String, Object> metadata) {
+      if (request.tableId == null) {
+         return;
+      }
+      TableChange.Operation operation;
+      switch (request.executorRequestType) {
+      case USER_TABLE_ADD_ROW:
+      case LOCAL_TABLE_INSERT_ROW:
+         operation = TableChange.Operation.INSERT;
+         break;
+      case USER_TABLE_UPDATE_ROW:
+      case USER_TABLE_CHANGE_ACCESS_FILTER_ROW:
+      case USER_TABLE_SAVE_CHECKPOINT_AS_INCOMPLETE:
+      case USER_TABLE_SAVE_CHECKPOINT_AS_COMPLETE:
+      case LOCAL_TABLE_UPDATE_ROW:
+         operation = TableChange.Operation.UPDATE;
+         break;
+      case USER_TABLE_DELETE_ROW:
+      case LOCAL_TABLE_DELETE_ROW:
+         operation = TableChange.Operation.DELETE;
+         break;
+      case USER_TABLE_ADD_CHECKPOINT:
+      case USER_TABLE_DELETE_ALL_CHECKPOINTS:
+      case USER_TABLE_DELETE_LAST_CHECKPOINT:
+      case USER_TABLE_COMPACT_CHECKPOINTS:
+         operation = TableChange.Operation.CHECKPOINT;
+         break;
+      case LOCAL_TABLE_CREATE_TABLE:
+      case LOCAL_TABLE_DELETE_TABLE:
+         operation = TableChange.Operation.SCHEMA;
+         break;
+      default:
+         // read-only
+         return;
+      }
+      Object dataETag = (metadata == null) ? null : metadata.get("lastDataETag");
+      TableChangeBus.get().publish(new TableChange(context.getAppName(), request.tableId,
+          request.rowId, operation, (dataETag == null) ? null : dataETag.toString(), context));
+   }
+
    /**
     * Assumes incoming stringifiedJSON map only contains integers, doubles, strings, booleans
     * and arrays or string-value maps.
@@ -373,17 +442,18 @@ public abstract class ExecutorProcessor implements Runnable {
    }
 
    private void getRolesList() throws ServicesAvailabilityException {
-      String rolesList = dbInterface.getRolesList(context.getAppName());
+      String rolesList = UserContext.get(dbInterface, context.getAppName()).getRolesList();
       reportRolesListSuccessAndCleanUp(rolesList);
    }
 
    private void getDefaultGroup() throws ServicesAvailabilityException {
-      String defaultGroup = dbInterface.getDefaultGroup(context.getAppName());
+      String defaultGroup = UserContext.get(dbInterface, context.getAppName())
+          .getDefaultGroup();
       reportDefaultGroupSuccessAndCleanUp(defaultGroup);
    }
 
    private void getUsersList() throws ServicesAvailabilityException {
-      String usersList = dbInterface.getUsersList(context.getAppName());
+      String usersList = UserContext.get(dbInterface, context.getAppName()).getUsersList();
       reportUsersListSuccessAndCleanUp(usersList);
    }
 
@@ -492,8 +562,8 @@ public abstract class ExecutorProcessor implements Runnable {
             if (entry.partition.equals(KeyValueStoreConstants.PARTITION_COLUMN) && entry.key
                 .equals(KeyValueStoreConstants.COLUMN_DISPLAY_CHOICES_LIST) && !choiceMap
                 .containsKey(entry.value)) {
-               String choiceList = dbInterface
-                   .getChoiceList(context.getAppName(), dbHandle, entry.value);
+               String choiceList = ChoiceListCache.get()
+                   .getChoiceListJSON(dbInterface, context.getAppName(), dbHandle, entry.value);
                choiceMap.put(entry.value, choiceList);
             }
          }
@@ -507,14 +577,17 @@ public abstract class ExecutorProcessor implements Runnable {
 
       ArrayList<List<Object>> data = new ArrayList<List<Object>>();
 
-      TypeColumnWebIfCache typeColumnCache = new TypeColumnWebIfCache(columnDefinitions, baseTable);
+      TypeColumnWebIfCache typeColumnCache = context
+          .getTypeColumnWebIfCache(request.tableId, columnDefinitions, baseTable);
 
       // assemble the data array
+      // decode directly from each Row rather than wrapping it in a TypedRow
+      final int width = baseTable.getWidth();
       for (int i = 0; i < baseTable.getNumberOfRows(); ++i) {
-         TypedRow r = new TypedRow(baseTable.getRowAtIndex(i), columnDefinitions);
-         Object[] values = new Object[baseTable.getWidth()];
+         Row r = baseTable.getRowAtIndex(i);
+         Object[] values = new Object[width];
 
-         for (int idx = 0; idx < baseTable.getWidth(); ++idx) {
+         for (int idx = 0; idx < width; ++idx) {
             values[idx] = typeColumnCache.getOdkDataWebIfDataByIndex(idx, r);
          }
          data.add(Arrays.asList(values));
@@ -621,13 +694,18 @@ public abstract class ExecutorProcessor implements Runnable {
       ArrayList<List<Object>> data = new ArrayList<List<Object>>();
 
       if (baseTable != null) {
+         TypeColumnWebIfCache typeColumnCache = context
+             .getTypeColumnWebIfCache(request.tableId, orderedColumns, baseTable);
+
          // assemble the data array
+         // decode directly from each Row rather than wrapping it in a TypedRow
+         final int width = baseTable.getWidth();
          for (int i = 0; i < baseTable.getNumberOfRows(); ++i) {
-            TypedRow r = new TypedRow(baseTable.getRowAtIndex(i), orderedColumns);
-            Object[] values = new Object[baseTable.getWidth()];
+            Row r = baseTable.getRowAtIndex(i);
+            Object[] values = new Object[width];
 
-            for (int idx = 0; idx < baseTable.getWidth(); ++idx) {
-               values[idx] = r.getOdkDataIfDataByIndex(idx);
+            for (int idx = 0; idx < width; ++idx) {
+               values[idx] = typeColumnCache.getOdkDataWebIfDataByIndex(idx, r);
             }
             data.add(Arrays.asList(values));
          }
@@ -665,8 +743,8 @@ public abstract class ExecutorProcessor implements Runnable {
       // assemble the data and metadata objects
       ArrayList<List<Object>> data = new ArrayList<List<Object>>();
 
-      TypeColumnWebIfCache typeColumnCache = new TypeColumnWebIfCache(userTable.getColumnDefinitions(),
-          userTable.getBaseTable());
+      TypeColumnWebIfCache typeColumnCache = context.getTypeColumnWebIfCache(request.tableId,
+          userTable.getColumnDefinitions(), userTable.getBaseTable());
 
       for (int i = 0; i < userTable.getNumberOfRows(); ++i) {
          TypedRow r = userTable.getRowAtIndex(i);
@@ -1049,6 +1127,166 @@ public abstract class ExecutorProcessor implements Runnable {
       }
    }
 
+   /**
+    * Replace the checkpoints of the row, or of every row of the table that has more than
+    * one, with a single checkpoint holding the values of the most recent one. Rows that
+    * have never been saved are left alone.
+    */
+   private void compactCheckpoints()
+       throws ServicesAvailabilityException, ActionNotAuthorizedException {
+      if (request.tableId == null) {
+         reportErrorAndCleanUp(
+             IllegalArgumentException.class.getName() + ": tableId cannot be null");
+         return;
+      }
+
+      OrderedColumns columns = context.getOrderedColumns(request.tableId);
+      if (columns == null) {
+         columns = dbInterface
+             .getUserDefinedColumns(context.getAppName(), dbHandle, request.tableId);
+         context.putOrderedColumns(request.tableId, columns);
+      }
+
+      long startTime = System.currentTimeMillis();
+      List<String> rowIds;
+      if (request.rowId != null) {
+         rowIds = Collections.singletonList(request.rowId);
+      } else {
+         rowIds = new ArrayList<String>();
+         BaseTable baseTable = dbInterface
+             .arbitrarySqlQuery(context.getAppName(), dbHandle, request.tableId,
+                 "SELECT " + DataTableColumns.ID + " FROM \"" + request.tableId + "\" WHERE "
+                     + DataTableColumns.SAVEPOINT_TYPE + " IS NULL AND " + DataTableColumns.ID
+                     + " IN (SELECT " + DataTableColumns.ID + " FROM \"" + request.tableId
+                     + "\" WHERE " + DataTableColumns.SAVEPOINT_TYPE + " IS NOT NULL) GROUP BY "
+                     + DataTableColumns.ID + " HAVING COUNT(*) > 1", new BindArgs(new Object[0]),
+                 null, null);
+         if (baseTable == null) {
+            reportErrorAndCleanUp(
+                IllegalStateException.class.getName() + ": Unable to compactCheckpoints for "
+                    + request.tableId);
+            return;
+         }
+         for (int i = 0; i < baseTable.getNumberOfRows(); ++i) {
+            rowIds.add(baseTable.getRowAtIndex(i).getRawStringByKey(DataTableColumns.ID));
+         }
+      }
+
+      int compactedRowCount = 0;
+      int reclaimedCheckpointCount = 0;
+      for (String rowId : rowIds) {
+         int reclaimed = compactCheckpointsOfRow(columns, rowId);
+         if (reclaimed > 0) {
+            ++compactedRowCount;
+            reclaimedCheckpointCount += reclaimed;
+         }
+      }
+      long elapsed = System.currentTimeMillis() - startTime;
+      context.recordCheckpointCompaction(compactedRowCount, reclaimedCheckpointCount, elapsed);
+      WebLogger.getLogger(context.getAppName()).i(TAG,
+          "compactCheckpoints: " + request.tableId + " removed " + reclaimedCheckpointCount
+              + " checkpoints from " + compactedRowCount + " rows in " + elapsed + " ms");
+
+      Map<String, Object> metadata = new HashMap<String, Object>();
+      metadata.put("tableId", request.tableId);
+      metadata.put("compactedRowCount", compactedRowCount);
+      metadata.put("reclaimedCheckpointCount", reclaimedCheckpointCount);
+      reportSuccessAndCleanUp(null, metadata);
+   }
+
+   /**
+    * @param columns
+    * @param rowId
+    * @return the number of checkpoints removed
+    */
+   private int compactCheckpointsOfRow(OrderedColumns columns, String rowId)
+       throws ServicesAvailabilityException, ActionNotAuthorizedException {
+      UserTable t = dbInterface
+          .getRowsWithId(context.getAppName(), dbHandle, request.tableId, columns, rowId);
+      if (t == null) {
+         return 0;
+      }
+
+      TypedRow mostRecent = null;
+      String mostRecentTimestamp = null;
+      int checkpointCount = 0;
+      boolean hasSavedRow = false;
+      for (int i = 0; i < t.getNumberOfRows(); ++i) {
+         TypedRow r = t.getRowAtIndex(i);
+         if (r.getRawStringByKey(DataTableColumns.SAVEPOINT_TYPE) != null) {
+            // the saved row
+            hasSavedRow = true;
+            continue;
+         }
+         ++checkpointCount;
+         String timestamp = r.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP);
+         if (mostRecent == null || timestamp.compareTo(mostRecentTimestamp) > 0) {
+            mostRecent = r;
+            mostRecentTimestamp = timestamp;
+         }
+      }
+      if (checkpointCount < 2) {
+         return 0;
+      }
+      if (!hasSavedRow) {
+         // a row that has never been saved exists only as its checkpoints; a failure
+         // between the delete and the insert below would lose it entirely.
+         return 0;
+      }
+
+      ContentValues cvValues = new ContentValues();
+      for (ColumnDefinition cd : columns.getColumnDefinitions()) {
+         if (cd.isUnitOfRetention()) {
+            cvValues.put(cd.getElementKey(), mostRecent.getRawStringByKey(cd.getElementKey()));
+         }
+      }
+      for (String key : CHECKPOINT_METADATA_COLUMNS) {
+         cvValues.put(key, mostRecent.getRawStringByKey(key));
+      }
+
+      // The kept checkpoint cannot be inserted first: deleteAllCheckpointRowsWithId
+      // would remove it along with the older ones. Instead, if either call fails,
+      // put the kept checkpoint back and let the error reach the caller.
+      boolean compacted = false;
+      try {
+         dbInterface
+             .deleteAllCheckpointRowsWithId(context.getAppName(), dbHandle, request.tableId,
+                 columns, rowId);
+         dbInterface
+             .insertCheckpointRowWithId(context.getAppName(), dbHandle, request.tableId, columns,
+                 cvValues, rowId);
+         compacted = true;
+      } finally {
+         if (!compacted) {
+            restoreCheckpoint(columns, cvValues, rowId);
+         }
+      }
+      return checkpointCount - 1;
+   }
+
+   /**
+    * Re-inserts the checkpoint that compaction keeps after a failed delete or insert.
+    * If the delete had not taken effect, the row gains one copy of its newest
+    * checkpoint, which is harmless. Failures here are logged; the original error
+    * is the one reported.
+    *
+    * @param columns
+    * @param cvValues the kept checkpoint
+    * @param rowId
+    */
+   private void restoreCheckpoint(OrderedColumns columns, ContentValues cvValues, String rowId) {
+      try {
+         dbInterface
+             .insertCheckpointRowWithId(context.getAppName(), dbHandle, request.tableId, columns,
+                 cvValues, rowId);
+      } catch (Throwable t) {
+         WebLogger.getLogger(context.getAppName()).e(TAG,
+             "compactCheckpoints: unable to restore the newest checkpoint of " + request.tableId
+                 + " row " + rowId);
+         WebLogger.getLogger(context.getAppName()).printStackTrace(t);
+      }
+   }
+
    private void createLocalOnlyTableWithColumns()
        throws ServicesAvailabilityException, IOException {
       if (request.tableId == null) {
@@ -252,7 +252,8 @@ public class ExecutorRequest {
    *                            <li>USER_TABLE_SAVE_CHECKPOINT_AS_INCOMPLETE</li>
    *                            <li>USER_TABLE_SAVE_CHECKPOINT_AS_COMPLETE</li>
    *                            <li>USER_TABLE_DELETE_ALL_CHECKPOINTS</li>
-   *                            <li>USER_TABLE_DELETE_LAST_CHECKPOINT</li></ul>
+   *                            <li>USER_TABLE_DELETE_LAST_CHECKPOINT</li>
+   *                            <li>USER_TABLE_COMPACT_CHECKPOINTS</li></ul>
    *
    * @param tableId             The table being updated
    * @param stringifiedJSON     The key-value map of values to store or update. If missing,
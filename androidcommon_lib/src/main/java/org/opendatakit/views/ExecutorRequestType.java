@@ -38,11 +38,33 @@ public enum ExecutorRequestType {
   USER_TABLE_SAVE_CHECKPOINT_AS_COMPLETE,
   USER_TABLE_DELETE_ALL_CHECKPOINTS,
   USER_TABLE_DELETE_LAST_CHECKPOINT,
+  USER_TABLE_COMPACT_CHECKPOINTS,
   LOCAL_TABLE_CREATE_TABLE,
   LOCAL_TABLE_DELETE_TABLE,
   LOCAL_TABLE_INSERT_ROW,
   LOCAL_TABLE_UPDATE_ROW,
   LOCAL_TABLE_DELETE_ROW,
   LOCAL_TABLE_SIMPLE_QUERY,
-  LOCAL_TABLE_ARBITRARY_QUERY
+  LOCAL_TABLE_ARBITRARY_QUERY;
+
+  /**
+   * @return true if requests of this type do not modify the database.
+   */
+  public boolean isReadOnly() {
+    switch (this) {
+    case GET_ROLES_LIST:
+    case GET_DEFAULT_GROUP:
+    case GET_USERS_LIST:
+    case GET_ALL_TABLE_IDS:
+    case ARBITRARY_QUERY:
+    case USER_TABLE_QUERY:
+    case USER_TABLE_GET_ROWS:
+    case USER_TABLE_GET_MOST_RECENT_ROW:
+    case LOCAL_TABLE_SIMPLE_QUERY:
+    case LOCAL_TABLE_ARBITRARY_QUERY:
+      return true;
+    default:
+      return false;
+    }
+  }
 }
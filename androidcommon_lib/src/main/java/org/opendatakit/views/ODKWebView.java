@@ -17,13 +17,16 @@ package org.opendatakit.views;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.MutableContextWrapper;
 import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import org.opendatakit.activities.IAppAwareActivity;
@@ -34,6 +37,9 @@ import org.opendatakit.logging.WebLoggerIf;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * NOTE: assumes that the Context implements IOdkSurveyActivity.
  * <p>
@@ -51,8 +57,22 @@ import org.opendatakit.utilities.ODKFileUtils;
 
    private static final String t = "ODKWebView";
    private static final String BASE_STATE = "BASE_STATE";
+   private static final int MAX_PAGE_LOAD_TIMELINES = 4;
 
    protected WebLoggerIf log;
+   private BridgeLog bridgeLog;
+   private String appName;
+   /**
+    * containerFragmentID => timeline of the most recent page load for that fragment.
+    * Guarded by itself.
+    */
+   private final Map<String, PageLoadTimeline> pageLoadTimelines =
+       new LinkedHashMap<String, PageLoadTimeline>() {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, PageLoadTimeline> eldest) {
+             return size() > MAX_PAGE_LOAD_TIMELINES;
+          }
+       };
    private OdkCommon odkCommon;
    private OdkData odkData;
    private String loadPageUrl = null;
@@ -82,6 +102,18 @@ import org.opendatakit.utilities.ODKFileUtils;
    private boolean isLoadPageFrameworkFinished = false;
    private boolean shouldReloadAfterLoad = false;
 
+   /**
+    * The page whose framework has finished loading in this WebView, if any.
+    * Unlike isLoadPageFrameworkFinished, this survives onPause() so that a
+    * pooled WebView can tell whether it still holds a usable page.
+    */
+   private String frameworkLoadedUrl = null;
+   /**
+    * true if this WebView has been taken from the ODKWebViewPool and not yet
+    * been asked to load a page.
+    */
+   private boolean isRebound = false;
+
    /**
     * @return if the webpage has a framework that will call back to notify that it has loaded,
     * then return true. Otherwise, when onPageLoad() completes, we assume the webpage is ready
@@ -89,6 +121,18 @@ import org.opendatakit.utilities.ODKFileUtils;
     */
    public abstract boolean hasPageFramework();
 
+   /**
+    * A pooled WebView that still holds the requested page only skips the page load if the
+    * page's framework re-queries its data (odkData.getViewData(), etc.) and re-renders when
+    * it is handed a new url hash via odkCommon.getFirstQueuedAction(). A framework that
+    * only queries while it loads would otherwise keep showing the previous fragment's data.
+    *
+    * @return true if the page handles being re-entered without a reload. Defaults to false.
+    */
+   protected boolean handlesPageReentry() {
+      return false;
+   }
+
    public abstract void reloadPage();
 
    /**
@@ -110,7 +154,21 @@ import org.opendatakit.utilities.ODKFileUtils;
    }
 
    public Context getOdkContext() {
-      return super.getContext();
+      return unwrap(super.getContext());
+   }
+
+   /**
+    * Pooled WebViews are constructed with a MutableContextWrapper around
+    * the activity so that they can be moved to another activity.
+    *
+    * @param context
+    * @return the activity
+    */
+   static Context unwrap(Context context) {
+      if (context instanceof MutableContextWrapper) {
+         return ((MutableContextWrapper) context).getBaseContext();
+      }
+      return context;
    }
 
    public void setContainerFragmentID(String containerFragmentID) {
@@ -172,13 +230,19 @@ import org.opendatakit.utilities.ODKFileUtils;
       }
    }
 
-   public ODKWebView(Context context, AttributeSet attrs) {
-      super(context, attrs);
+   public ODKWebView(Context wrappedContext, AttributeSet attrs) {
+      super(wrappedContext, attrs);
 
       // Context is ALWAYS an IOdkDataActivity, IOdkCommonActivity, IAppAwareActivity, IInitResumeActivity...
+      // possibly wrapped in a MutableContextWrapper if the view is pooled,
+      // unless the view is being prewarmed for the pool.
+      Context context = unwrap(wrappedContext);
+      boolean unbound = (wrappedContext instanceof ODKWebViewPool.UnboundContext);
 
-      String appName = ((IAppAwareActivity) context).getAppName();
+      appName = unbound ? ((ODKWebViewPool.UnboundContext) wrappedContext).appName :
+          ((IAppAwareActivity) context).getAppName();
       log = WebLogger.getLogger(appName);
+      bridgeLog = BridgeLog.get(appName);
       log.i(t, "[" + this.hashCode() + "] ODKWebView()");
 
       perhapsEnableDebugging();
@@ -213,16 +277,19 @@ import org.opendatakit.utilities.ODKFileUtils;
 
       // set up the client...
       setWebChromeClient(new ODKWebChromeClient(this));
-      setWebViewClient(new ODKWebViewClient(this));
+      setWebViewClient(new ODKWebViewClient(this, appName));
 
       // set up the odkCommonIf
-      odkCommon = new OdkCommon((IOdkCommonActivity) context, this);
+      odkCommon = new OdkCommon(unbound ? null : (IOdkCommonActivity) context,
+          context.getApplicationContext(), this);
       addJavascriptInterface(odkCommon.getJavascriptInterfaceWithWeakReference(),
           Constants.JavaScriptHandles.COMMON);
 
-      odkData = new OdkData((IOdkDataActivity) context, this);
+      // a prewarmed view does not use the ExecutorContext of any activity until it is acquired
+      odkData = new OdkData(unbound ? null : (IOdkDataActivity) context, this);
       addJavascriptInterface(odkData.getJavascriptInterfaceWithWeakReference(),
           Constants.JavaScriptHandles.DATA);
+      isInactive = unbound;
    }
 
 
@@ -231,6 +298,48 @@ import org.opendatakit.utilities.ODKFileUtils;
       return log;
    }
 
+   /**
+    * @return the level-gated, sampled logger for the hot paths
+    */
+   final BridgeLog getBridgeLog() {
+      return bridgeLog;
+   }
+
+   /**
+    * @return the timeline of the most recent page load for the current containerFragmentID,
+    * or null if no page has been loaded for it.
+    */
+   public PageLoadTimeline getPageLoadTimeline() {
+      return getPageLoadTimeline(containerFragmentID);
+   }
+
+   /**
+    * @param containerFragmentID
+    * @return the timeline of the most recent page load for the containerFragmentID, or null.
+    */
+   public PageLoadTimeline getPageLoadTimeline(String containerFragmentID) {
+      synchronized (pageLoadTimelines) {
+         return pageLoadTimelines.get(containerFragmentID);
+      }
+   }
+
+   /**
+    * Start the timeline of a page load for the containerFragmentID. An unfinished
+    * timeline of an earlier load for the same fragment is written out as superseded.
+    */
+   private PageLoadTimeline startPageLoadTimeline(String containerFragmentID, String url) {
+      PageLoadTimeline timeline = new PageLoadTimeline(appName, containerFragmentID, url);
+      PageLoadTimeline previous;
+      synchronized (pageLoadTimelines) {
+         previous = pageLoadTimelines.remove(containerFragmentID);
+         pageLoadTimelines.put(containerFragmentID, timeline);
+      }
+      if (previous != null) {
+         previous.write(PageLoadTimeline.TRIGGER_SUPERSEDED);
+      }
+      return timeline;
+   }
+
    /**
     * Signals that a queued action (either the result of
     * a doAction call or a Java-initiated Url change) is
@@ -258,6 +367,10 @@ import org.opendatakit.utilities.ODKFileUtils;
    public void signalResponseAvailable() {
       // NOTE: this is asynchronous
       log.i(t, "[" + this.hashCode() + "] signalResponseAvailable()");
+      PageLoadTimeline timeline = getPageLoadTimeline();
+      if (timeline != null) {
+         timeline.markOnce(PageLoadTimeline.FIRST_RESPONSE, null);
+      }
       loadJavascriptUrl("javascript:odkData.responseAvailable();", false);
    }
 
@@ -267,7 +380,8 @@ import org.opendatakit.utilities.ODKFileUtils;
       if (isInactive())
          return; // no-op
       if (isLoadPageFrameworkFinished || !suppressIfFrameworkIsNotLoaded) {
-         log.i(t, "[" + this.hashCode() + "] loadJavascriptUrl: IMMEDIATE: " + javascriptUrl);
+         bridgeLog.event(Log.DEBUG, BridgeLog.EVENT_JAVASCRIPT_URL, t,
+             "loadJavascriptUrl: IMMEDIATE: ", javascriptUrl);
 
          // Ensure that this is run on the UI thread
          if (Thread.currentThread() != Looper.getMainLooper().getThread()) {
@@ -330,6 +444,56 @@ import org.opendatakit.utilities.ODKFileUtils;
 
    public synchronized void frameworkHasLoaded() {
       isLoadPageFrameworkFinished = true;
+      frameworkLoadedUrl = loadPageUrl;
+      PageLoadTimeline timeline = getPageLoadTimeline();
+      if (timeline != null) {
+         timeline.markOnce(PageLoadTimeline.FRAMEWORK_LOADED, null);
+      }
+   }
+
+   /**
+    * Move this (pooled) WebView to a new activity. Called by ODKWebViewPool.
+    *
+    * @param activity the activity that will hold the view
+    */
+   synchronized void rebind(Context activity) {
+      ((MutableContextWrapper) super.getContext()).setBaseContext(activity);
+      odkCommon.rebind((IOdkCommonActivity) activity);
+      odkData.rebind((IOdkDataActivity) activity);
+      containerFragmentID = null;
+      isRebound = true;
+      isInactive = false;
+      log.i(t, "[" + this.hashCode() + "] rebind()");
+   }
+
+   /**
+    * Detach this WebView from its activity so that it can be held in the
+    * ODKWebViewPool. The loaded page is retained. Called by ODKWebViewPool.
+    */
+   synchronized void unbind() {
+      log.i(t, "[" + this.hashCode() + "] unbind()");
+      // the javascript interfaces are no-ops while the view is inactive.
+      // the ExecutorContext is shared with the other views of the activity;
+      // odkData releases it and it shuts down once no view is using it.
+      isInactive = true;
+      ViewGroup parent = (ViewGroup) getParent();
+      if (parent != null) {
+         parent.removeView(this);
+      }
+      MutableContextWrapper wrapper = (MutableContextWrapper) super.getContext();
+      wrapper.setBaseContext(wrapper.getBaseContext().getApplicationContext());
+      odkCommon.rebind(null);
+      odkData.rebind(null);
+      containerFragmentID = null;
+   }
+
+   /**
+    * @param url
+    * @return the url without its hash (#...) portion
+    */
+   private static String stripHash(String url) {
+      int idxHash = url.indexOf('#');
+      return (idxHash == -1) ? url : url.substring(0, idxHash);
    }
 
 
@@ -340,6 +504,32 @@ import org.opendatakit.utilities.ODKFileUtils;
          return;
       }
 
+      if (isRebound) {
+         isRebound = false;
+         if (handlesPageReentry() && url != null && frameworkLoadedUrl != null &&
+             stripHash(url).equals(stripHash(frameworkLoadedUrl))) {
+            // a pooled view that already holds this page and its framework,
+            // and the framework re-queries when re-entered.
+            // navigate within the page rather than loading it again.
+            log.i(t, "loadPageOnUiThread: reusing loaded framework for " + url);
+            isLoadPageFrameworkFinished = true;
+            shouldForceLoadDuringReload = false;
+            shouldReloadAfterLoad = false;
+            loadPageUrl = url;
+            this.containerFragmentID = containerFragmentID;
+            startPageLoadTimeline(containerFragmentID, url)
+                .markOnce(PageLoadTimeline.FRAMEWORK_LOADED, "reused");
+
+            // no view-data prefetch: the framework is already loaded and decides
+            // for itself when to re-query, so a prefetch might never be claimed.
+
+            String hash = url.substring(stripHash(url).length());
+            ((IOdkCommonActivity) getOdkContext()).queueUrlChange(hash);
+            loadJavascriptUrl("javascript:window.odkCommon.signalQueuedActionAvailable()", true);
+            return;
+         }
+      }
+
       if (url != null) {
          boolean isSameUrl = url.equals(getLoadPageUrl());
 
@@ -360,8 +550,17 @@ import org.opendatakit.utilities.ODKFileUtils;
 
             // reset to a clean need-to-reload state
             isLoadPageFrameworkFinished = false;
+            frameworkLoadedUrl = null;
             loadPageUrl = url;
+            // the live queries of the page being replaced, and of any earlier
+            // page of this fragment, would otherwise keep refreshing
+            odkData.dropSubscriptions(this.containerFragmentID);
+            odkData.dropSubscriptions(containerFragmentID);
             this.containerFragmentID = containerFragmentID;
+            startPageLoadTimeline(containerFragmentID, url);
+
+            // start the view query now so that it runs while the page loads
+            odkData.prefetchViewData();
 
             if (shouldForceLoadDuringReload || !isSameUrl) {
                log.i(t, "loadURL: " + url);
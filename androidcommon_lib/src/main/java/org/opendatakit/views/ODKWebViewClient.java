@@ -15,51 +15,101 @@
 package org.opendatakit.views;
 
 import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.webkit.WebResourceError;
 import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import java.util.Map;
+
 public class ODKWebViewClient extends WebViewClient {
   private static final String t = "ODKWebViewClient";
   private final ODKWebView wrappedView;
+  private final WebAssetLoader assetLoader;
 
-  ODKWebViewClient(ODKWebView wrappedView) {
+  ODKWebViewClient(ODKWebView wrappedView, String appName) {
 	this.wrappedView = wrappedView;
+	this.assetLoader = new WebAssetLoader(appName);
+  }
+
+  @SuppressWarnings("deprecation")
+  @Override
+  public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+    // serve the app's files directly rather than through the webkit server
+    WebResourceResponse response = assetLoader.load(null, url, false);
+    return (response != null) ? response : super.shouldInterceptRequest(view, url);
+  }
+
+  @TargetApi(21)
+  @Override
+  public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+    Map<String, String> headers = request.getRequestHeaders();
+    boolean hasRangeHeader = false;
+    if (headers != null) {
+      for (String name : headers.keySet()) {
+        if ("Range".equalsIgnoreCase(name)) {
+          hasRangeHeader = true;
+          break;
+        }
+      }
+    }
+    // NOTE: do not call super -- it would invoke the deprecated method above
+    return assetLoader.load(request.getMethod(), request.getUrl().toString(), hasRangeHeader);
   }
 
   @SuppressWarnings("deprecation")
   @Override
   public boolean shouldOverrideUrlLoading(WebView view, String url) {
-    wrappedView.getLogger().i(t,
-        "shouldOverrideUrlLoading: " + url + " ms: " + Long.toString(System.currentTimeMillis()));
+    wrappedView.getBridgeLog()
+        .event(Log.DEBUG, BridgeLog.EVENT_URL_LOADING, t, "shouldOverrideUrlLoading: ", url);
     return super.shouldOverrideUrlLoading(view, url);
   }
 
   @TargetApi(24)
   @Override
   public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
-    wrappedView.getLogger().i(t,
-        "shouldOverrideUrlLoading: " + request.getUrl().toString() + " ms: " +
-            Long.toString(System.currentTimeMillis()));
+    wrappedView.getBridgeLog().event(Log.DEBUG, BridgeLog.EVENT_URL_LOADING, t,
+        "shouldOverrideUrlLoading: ", request.getUrl());
     return super.shouldOverrideUrlLoading(view, request);
   }
 
   @Override
   public void doUpdateVisitedHistory(WebView view, String url, boolean isReload) {
-    wrappedView.getLogger().i(t, "doUpdateVisitedHistory: " + url + " ms: " + Long.toString(System.currentTimeMillis()));
+    wrappedView.getBridgeLog()
+        .event(Log.DEBUG, BridgeLog.EVENT_VISITED_HISTORY, t, "doUpdateVisitedHistory: ", url);
+  }
+
+  @Override
+  public void onPageStarted(WebView view, String url, Bitmap favicon) {
+    PageLoadTimeline timeline = wrappedView.getPageLoadTimeline();
+    if (timeline != null) {
+      timeline.mark(PageLoadTimeline.PAGE_STARTED, url);
+    }
+    super.onPageStarted(view, url, favicon);
   }
 
   @Override
   public void onLoadResource(WebView view, String url) {
-    wrappedView.getLogger().i(t, "onLoadResource: " + url + " ms: " + Long.toString(System.currentTimeMillis()));
+    PageLoadTimeline timeline = wrappedView.getPageLoadTimeline();
+    if (timeline != null) {
+      timeline.markResource(url);
+    }
+    wrappedView.getBridgeLog()
+        .event(Log.DEBUG, BridgeLog.EVENT_LOAD_RESOURCE, t, "onLoadResource: ", url);
     super.onLoadResource(view, url);
   }
 
   @Override
   public void onPageFinished(WebView view, String url) {
-    wrappedView.getLogger().i(t, "onPageFinished: " + url + " ms: " + Long.toString(System.currentTimeMillis()));
+    wrappedView.getBridgeLog().log(Log.INFO, t, "onPageFinished: ", url);
+    PageLoadTimeline timeline = wrappedView.getPageLoadTimeline();
+    if (timeline != null) {
+      timeline.mark(PageLoadTimeline.PAGE_FINISHED, url);
+    }
     wrappedView.pageFinished(url);
     super.onPageFinished(view, url);
   }
@@ -67,7 +117,7 @@ public class ODKWebViewClient extends WebViewClient {
   @SuppressWarnings("deprecation")
   @Override
   public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
-    wrappedView.getLogger().i(t, "onReceivedError: " + failingUrl + " ms: " + Long.toString(System.currentTimeMillis()));
+    wrappedView.getBridgeLog().log(Log.INFO, t, "onReceivedError: ", failingUrl);
     super.onReceivedError(view, errorCode, description, failingUrl);
   }
 
@@ -76,9 +126,7 @@ public class ODKWebViewClient extends WebViewClient {
   @Override
   public void onReceivedError(WebView view, WebResourceRequest request,
       WebResourceError error) {
-    wrappedView.getLogger().i(t, "onReceivedError: " + request.getUrl().toString() + " ms: " + Long
-        .toString(System
-        .currentTimeMillis()));
+    wrappedView.getBridgeLog().log(Log.INFO, t, "onReceivedError: ", request.getUrl());
     super.onReceivedError(view, request, error);
   }
 
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.os.Looper;
+import android.os.MessageQueue;
+import org.opendatakit.logging.WebLogger;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A per-appName pool of initialized ODKWebViews.
+ * <p>
+ * Constructing an ODKWebView configures its WebSettings and javascript
+ * interfaces, and the page must then load and bootstrap its framework.
+ * A fragment that acquires a view from this pool skips the construction and,
+ * if the view still holds the same page, the page load and framework bootstrap
+ * as well (see ODKWebView.loadPageOnUiThread).
+ * <p>
+ * Pooled views are constructed around a MutableContextWrapper so that they
+ * can be moved from one activity to another. While in the pool, a view is
+ * bound to the application context and its javascript interfaces are inactive.
+ * <p>
+ * All methods must be called on the UI thread.
+ */
+public final class ODKWebViewPool {
+
+  private static final String TAG = ODKWebViewPool.class.getSimpleName();
+
+  private static final int MAX_POOLED_PER_APP = 2;
+
+  /**
+   * Creates a new ODKWebView of a specific subclass.
+   *
+   * @param <T> the ODKWebView subclass
+   */
+  public interface WebViewFactory<T extends ODKWebView> {
+    /**
+     * @param context a MutableContextWrapper around the activity, or (when
+     *                prewarming) an UnboundContext around the application context
+     * @return a new web view
+     */
+    T newWebView(Context context);
+  }
+
+  /**
+   * The context of a view constructed by prewarm(). It wraps the application
+   * context, so the view is inactive and its javascript interfaces are not bound
+   * to any activity (or its ExecutorContext) until it is acquired.
+   */
+  static final class UnboundContext extends MutableContextWrapper {
+    final String appName;
+
+    UnboundContext(Context applicationContext, String appName) {
+      super(applicationContext);
+      this.appName = appName;
+    }
+  }
+
+  /**
+   * appName => idle web views, most recently released first
+   */
+  private static final Map<String, LinkedList<ODKWebView>> pools =
+      new HashMap<String, LinkedList<ODKWebView>>();
+
+  private ODKWebViewPool() {
+  }
+
+  private static void assertUiThread() {
+    if (Thread.currentThread() != Looper.getMainLooper().getThread()) {
+      throw new IllegalStateException("must be called on the UI thread");
+    }
+  }
+
+  private static LinkedList<ODKWebView> getPool(String appName) {
+    LinkedList<ODKWebView> pool = pools.get(appName);
+    if (pool == null) {
+      pool = new LinkedList<ODKWebView>();
+      pools.put(appName, pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Get a web view for the activity, reusing a pooled view of the same
+   * class if there is one.
+   *
+   * @param activity  the activity that will hold the view
+   * @param appName
+   * @param viewClass the class of web view wanted
+   * @param factory   used to construct a view if none is pooled
+   * @param <T>
+   * @return the web view, bound to the activity
+   */
+  public static <T extends ODKWebView> T acquire(Context activity, String appName,
+      Class<T> viewClass, WebViewFactory<T> factory) {
+    assertUiThread();
+    LinkedList<ODKWebView> pool = getPool(appName);
+    // prefer a view that has a page loaded -- it is first in the list
+    Iterator<ODKWebView> iter = pool.iterator();
+    while (iter.hasNext()) {
+      ODKWebView view = iter.next();
+      if (view.getClass() == viewClass) {
+        iter.remove();
+        view.rebind(activity);
+        WebLogger.getLogger(appName).i(TAG, "acquire: reusing pooled web view");
+        return viewClass.cast(view);
+      }
+    }
+    return factory.newWebView(new MutableContextWrapper(activity));
+  }
+
+  /**
+   * Return a web view to the pool. The view is removed from its parent and
+   * detached from its activity. If the pool is full, the view is destroyed.
+   * Views not created by this pool are always destroyed.
+   *
+   * @param appName
+   * @param view
+   */
+  public static void release(String appName, ODKWebView view) {
+    assertUiThread();
+    if (!(view.getContext() instanceof MutableContextWrapper) || view.isInactive()) {
+      view.destroy();
+      return;
+    }
+    view.unbind();
+    LinkedList<ODKWebView> pool = getPool(appName);
+    pool.addFirst(view);
+    while (pool.size() > MAX_POOLED_PER_APP) {
+      pool.removeLast().destroy();
+    }
+  }
+
+  /**
+   * Construct web views for the app once the UI thread is idle, until the pool
+   * holds count views. The views are constructed unbound, against the
+   * application context.
+   *
+   * @param activity
+   * @param appName
+   * @param factory
+   * @param count    number of views to hold (at most 2)
+   * @param <T>
+   */
+  public static <T extends ODKWebView> void prewarm(final Context activity, final String appName,
+      final WebViewFactory<T> factory, final int count) {
+    assertUiThread();
+    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+      @Override
+      public boolean queueIdle() {
+        LinkedList<ODKWebView> pool = getPool(appName);
+        if (pool.size() >= Math.min(count, MAX_POOLED_PER_APP)) {
+          return false;
+        }
+        ODKWebView view = factory
+            .newWebView(new UnboundContext(activity.getApplicationContext(), appName));
+        pool.addLast(view);
+        // construct one view per idle period
+        return pool.size() < Math.min(count, MAX_POOLED_PER_APP);
+      }
+    });
+  }
+
+  /**
+   * Destroy all the pooled web views of the app.
+   *
+   * @param appName
+   */
+  public static void clear(String appName) {
+    assertUiThread();
+    LinkedList<ODKWebView> pool = pools.remove(appName);
+    if (pool != null) {
+      for (ODKWebView view : pool) {
+        view.destroy();
+      }
+    }
+  }
+}
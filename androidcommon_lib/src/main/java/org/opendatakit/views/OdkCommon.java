@@ -17,6 +17,7 @@
 package org.opendatakit.views;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
@@ -67,9 +68,27 @@ public class OdkCommon {
    * @param activity the activity that will be holding the view
    */
   public OdkCommon(IOdkCommonActivity activity, ODKWebView webView) {
+    this(activity, activity.getApplicationContext(), webView);
+  }
+
+  /**
+   * @param activity           the activity, or null if the view is constructed for the pool
+   * @param applicationContext
+   * @param webView
+   */
+  OdkCommon(IOdkCommonActivity activity, Context applicationContext, ODKWebView webView) {
     this.mActivity = activity;
     this.mWebView = new WeakReference<ODKWebView>(webView);
-    this.mPropertyManager = new PropertyManager(mActivity.getApplicationContext());
+    this.mPropertyManager = new PropertyManager(applicationContext);
+  }
+
+  /**
+   * Bind to the activity now holding the (pooled) view.
+   *
+   * @param activity the activity, or null while the view is in the pool
+   */
+  void rebind(IOdkCommonActivity activity) {
+    this.mActivity = activity;
   }
 
   public boolean isInactive() {
@@ -326,6 +345,16 @@ public class OdkCommon {
     return mActivity.viewFirstQueuedAction();
   }
 
+  /**
+   * @return JSON serialization of the timeline of the most recent page load, or null.
+   */
+  public String getPageLoadTimeline() {
+    logDebug("getPageLoadTimeline()");
+    ODKWebView view = mWebView.get();
+    PageLoadTimeline timeline = (view == null) ? null : view.getPageLoadTimeline();
+    return (timeline == null) ? null : timeline.toJson();
+  }
+
   /**
    * Remove the first queued action, if any.
    */
@@ -349,14 +378,14 @@ public class OdkCommon {
 
     if ( jsonMap != null && jsonMap.length() != 0 ) {
       try {
-        JSONObject valueMap = (JSONObject) new JSONTokener(jsonMap).nextValue();
         PropertiesSingleton props = CommonToolProperties.get(mActivity.getApplicationContext(), appName);
 
         final DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
             mActivity.getTableId(), mActivity.getInstanceId(),
             mActivity.getActiveUser(), props.getUserSelectedDefaultLocale());
 
-        Bundle b = SerializationUtils.convertToBundle(valueMap, new SerializationUtils
+        // stream the JSON straight into the Bundle
+        Bundle b = SerializationUtils.convertToBundle(jsonMap, new SerializationUtils
             .MacroStringExpander() {
 
           @Override
@@ -379,7 +408,7 @@ public class OdkCommon {
           }
         });
         i.putExtras(b);
-      } catch (JSONException e) {
+      } catch (IOException e) {
         // error - signal via a cancelled result status
         resultCodeValue = Activity.RESULT_CANCELED;
         WebLogger.getLogger(mActivity.getAppName()).printStackTrace(e);
@@ -186,6 +186,20 @@ public class OdkCommonIf {
     weakControl.get().frameworkHasLoaded();
   }
 
+  /**
+   * Retrieve the timeline of the loading of this page, for performance measurements.
+   * Times are in milliseconds since the load was requested.
+   *
+   * @return stringified json object with the keys: appName, containerFragmentID, url,
+   * startTime, resourceCount, events: [ { event: name, ms: elapsed, detail: ... }, ... ]
+   */
+  @android.webkit.JavascriptInterface
+  public String getPageLoadTimeline() {
+    if (isInactive())
+      return null;
+    return weakControl.get().getPageLoadTimeline();
+  }
+
   /**
    * Execute an action (intent call).
    *
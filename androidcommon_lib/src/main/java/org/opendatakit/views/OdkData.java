@@ -14,7 +14,9 @@
 
 package org.opendatakit.views;
 
+import android.util.Log;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import org.opendatakit.activities.IOdkDataActivity;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.database.queries.ArbitraryQuery;
@@ -26,8 +28,11 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class OdkData {
 
@@ -123,11 +128,19 @@ public class OdkData {
 
   private ExecutorContext context;
 
+  /**
+   * @param activity the activity, or null if the view is constructed for the
+   *                 ODKWebViewPool; it is then bound by rebind()
+   * @param webView
+   */
   public OdkData(IOdkDataActivity activity, IOdkWebView webView) {
     mActivity = activity;
     mWebView = new WeakReference<IOdkWebView>(webView);
-    // change to support multiple data objects within a single webpage
-    context = ExecutorContext.getContext(mActivity);
+    if (activity != null) {
+      // change to support multiple data objects within a single webpage
+      context = ExecutorContext.getContext(mActivity);
+      context.attachView();
+    }
   }
 
   public boolean isInactive() {
@@ -135,23 +148,91 @@ public class OdkData {
   }
 
   public synchronized void refreshContext() {
-    if (!context.isAlive()) {
+    if (context != null && !context.isAlive()) {
       context = ExecutorContext.getContext(mActivity);
+      context.attachView();
     }
   }
 
   public synchronized void shutdownContext() {
-    context.shutdownWorker();
+    if (context != null) {
+      context.shutdownWorker();
+    }
+  }
+
+  /**
+   * Bind to the activity now holding the (pooled) view.
+   * <p>
+   * When the view is put in the pool, the prefetch and live queries of its page
+   * are dropped and the ExecutorContext is released; the context shuts down if no other view
+   * of the activity is using it.
+   *
+   * @param activity the activity, or null while the view is in the pool
+   */
+  synchronized void rebind(IOdkDataActivity activity) {
+    if (context != null) {
+      String fragmentID = getFragmentID();
+      if (fragmentID != null) {
+        context.dropUnclaimedPrefetches(fragmentID);
+        // the page no longer receives the results of its live queries
+        context.dropSubscriptions(fragmentID);
+      }
+      context.detachView();
+    }
+    mActivity = activity;
+    context = (activity == null) ? null : ExecutorContext.getContext(activity);
+    if (context != null) {
+      context.attachView();
+    }
+  }
+
+  /**
+   * Drop the live queries of a page that is being replaced by a page load.
+   *
+   * @param fragmentID the containerFragmentID of the page; may be null
+   */
+  synchronized void dropSubscriptions(String fragmentID) {
+    if (context != null && fragmentID != null) {
+      context.dropSubscriptions(fragmentID);
+    }
   }
 
   private void logDebug(String loggingString) {
-    WebLogger.getLogger(this.mActivity.getAppName()).d("odkData", loggingString);
+    BridgeLog.get(mActivity.getAppName()).log(Log.DEBUG, "odkData", loggingString);
+  }
+
+  /**
+   * Log an odkData call. The message is only built if it will be logged.
+   */
+  private void logDebug(String operation, String tableId) {
+    BridgeLog.get(mActivity.getAppName())
+        .event(Log.DEBUG, BridgeLog.EVENT_ODKDATA_CALL, "odkData", operation, tableId);
+  }
+
+  private void logDebug(String operation, String tableId, String detail, String value) {
+    BridgeLog.get(mActivity.getAppName())
+        .event(Log.DEBUG, BridgeLog.EVENT_ODKDATA_CALL, "odkData", operation, tableId, detail, value);
   }
 
   private void queueRequest(ExecutorRequest request) {
+    markTimeline(PageLoadTimeline.FIRST_DATA_REQUEST, request.executorRequestType.name(), true);
     context.queueRequest(request);
   }
 
+  private void markTimeline(String event, String detail, boolean once) {
+    IOdkWebView webView = mWebView.get();
+    if (webView instanceof ODKWebView) {
+      PageLoadTimeline timeline = ((ODKWebView) webView).getPageLoadTimeline();
+      if (timeline != null) {
+        if (once) {
+          timeline.markOnce(event, detail);
+        } else {
+          timeline.mark(event, detail);
+        }
+      }
+    }
+  }
+
   public OdkDataIf getJavascriptInterfaceWithWeakReference() {
     return new OdkDataIf(this);
   }
@@ -174,10 +255,55 @@ public class OdkData {
   public void getViewData(String callbackJSON, Integer limit, Integer offset) {
     logDebug("getViewData");
 
+    ExecutorRequest request = buildViewDataRequest(callbackJSON, limit, offset);
+    if (request == null) {
+      return;
+    }
+    ViewDataPrefetch.recordPaging(request);
+    // use the query issued while the page was loading if it asked for the same rows
+    if (context.claimPrefetch(request)) {
+      return;
+    }
+    queueRequest(request);
+  }
+
+  /**
+   * Start the view query while the page is loading so that the result is
+   * (likely) ready when the javascript calls getViewData(). The result is
+   * held until a getViewData() call with the same query, limit and offset claims it.
+   * The limit and offset are those of the last getViewData() call for the same query.
+   */
+  public void prefetchViewData() {
+    String token = ViewDataPrefetch.newToken();
+    ExecutorRequest request;
+    try {
+      request = buildViewDataRequest(token, null, null);
+      if (request == null) {
+        return;
+      }
+      Integer[] page = ViewDataPrefetch.getPaging(request);
+      if (page != null && (page[0] != null || page[1] != null)) {
+        // a paged view -- ask for the page it asked for last time
+        request = buildViewDataRequest(token, page[0], page[1]);
+      }
+    } catch (IllegalArgumentException e) {
+      // no view query is defined for this fragment
+      return;
+    }
+    logDebug("prefetchViewData");
+    markTimeline(PageLoadTimeline.VIEW_DATA_PREFETCH, request.executorRequestType.name(), false);
+    context.queuePrefetch(new ViewDataPrefetch(token, request));
+  }
+
+  /**
+   * @return the request for the view query of this fragment, or null if there is none.
+   */
+  private ExecutorRequest buildViewDataRequest(String callbackJSON, Integer limit,
+      Integer offset) {
     ResumableQuery queryParams = this.mActivity.getViewQuery(getFragmentID());
 
     if (queryParams == null) {
-      return;
+      return null;
     }
 
     ExecutorRequest request;
@@ -220,9 +346,9 @@ public class OdkData {
               callbackJSON, getFragmentID());
     } else {
       // Invalid state
-      return;
+      return null;
     }
-    queueRequest(request);
+    return request;
   }
 
   private String getFragmentID() {
@@ -308,7 +434,7 @@ public class OdkData {
   public void query(String tableId, String whereClause, String sqlBindParamsJSON, String[] groupBy,
       String having, String orderByElementKey, String orderByDirection,
       Integer limit, Integer offset, boolean includeKeyValueStoreMap, String metaDataRev, String callbackJSON) {
-    logDebug("query: " + tableId + " whereClause: " + whereClause);
+    logDebug("query: ", tableId, " whereClause: ", whereClause);
     BindArgs bindArgs = new BindArgs(sqlBindParamsJSON);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.USER_TABLE_QUERY,
             tableId, whereClause, bindArgs, groupBy, having, orderByElementKey, orderByDirection,
@@ -336,7 +462,7 @@ public class OdkData {
    */
   public void arbitraryQuery(String tableId, String sqlCommand, String sqlBindParamsJSON,
       Integer limit, Integer offset, String metaDataRev, String callbackJSON) {
-    logDebug("arbitraryQuery: " + tableId + " sqlCommand: " + sqlCommand);
+    logDebug("arbitraryQuery: ", tableId, " sqlCommand: ", sqlCommand);
     BindArgs bindArgs = new BindArgs(sqlBindParamsJSON);
 
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.ARBITRARY_QUERY, tableId,
@@ -345,6 +471,110 @@ public class OdkData {
     queueRequest(request);
   }
 
+  /**
+   * Register a live query. The query is run immediately and then re-run, with the
+   * result delivered to the same callbackJSON, after every write to its tableId.
+   *
+   * @param queryJSON    JSON.stringify of an object with the arguments of either
+   *                     query() or arbitraryQuery(): tableId, whereClause, sqlBindParams
+   *                     (array), groupBy (array), having, orderByElementKey,
+   *                     orderByDirection, limit, offset, includeKeyValueStoreMap, metaDataRev;
+   *                     or tableId, sqlCommand, sqlBindParams, limit, offset, metaDataRev.
+   * @param callbackJSON The JSON object used by the JS layer to recover the callback function
+   *                     that can process the responses
+   * @return the subscription id to pass to unsubscribe(), or null if queryJSON is invalid
+   */
+  public String subscribe(String queryJSON, String callbackJSON) {
+    Map<String, Object> query;
+    String sqlBindParamsJSON;
+    try {
+      query = ODKFileUtils.mapper.readValue(queryJSON, new TypeReference<HashMap<String, Object>>() {
+      });
+      Object bindParams = query.get("sqlBindParams");
+      sqlBindParamsJSON = (bindParams == null) ? null :
+          ODKFileUtils.mapper.writeValueAsString(bindParams);
+    } catch (IOException e) {
+      WebLogger.getLogger(mActivity.getAppName()).printStackTrace(e);
+      return null;
+    }
+    ExecutorRequest request;
+    try {
+      request = buildSubscriptionRequest(query, sqlBindParamsJSON, callbackJSON);
+    } catch (NumberFormatException e) {
+      WebLogger.getLogger(mActivity.getAppName()).e(TAG, "subscribe: invalid limit or offset");
+      return null;
+    } catch (ClassCastException e) {
+      WebLogger.getLogger(mActivity.getAppName()).e(TAG, "subscribe: invalid queryJSON");
+      return null;
+    }
+    if (request == null) {
+      return null;
+    }
+
+    QuerySubscription subscription = new QuerySubscription(request);
+    logDebug("subscribe: ", request.tableId, " id: ", subscription.id);
+    context.subscribe(subscription);
+    return subscription.id;
+  }
+
+  /**
+   * @return the query of a subscription, or null if it has no tableId
+   * @throws NumberFormatException if the limit or offset is not a number
+   * @throws ClassCastException    if an argument has the wrong JSON type
+   */
+  private ExecutorRequest buildSubscriptionRequest(Map<String, Object> query,
+      String sqlBindParamsJSON, String callbackJSON) {
+    String tableId = (String) query.get("tableId");
+    if (tableId == null) {
+      WebLogger.getLogger(mActivity.getAppName()).e(TAG, "subscribe: tableId cannot be null");
+      return null;
+    }
+    Integer limit = asInteger(query.get("limit"));
+    Integer offset = asInteger(query.get("offset"));
+    String metaDataRev = (String) query.get("metaDataRev");
+    BindArgs bindArgs = new BindArgs(sqlBindParamsJSON);
+
+    ExecutorRequest request;
+    String sqlCommand = (String) query.get("sqlCommand");
+    if (sqlCommand != null) {
+      request = new ExecutorRequest(ExecutorRequestType.ARBITRARY_QUERY, tableId,
+          sqlCommand, bindArgs, limit, offset, metaDataRev, callbackJSON, getFragmentID());
+    } else {
+      @SuppressWarnings("unchecked")
+      List<String> groupByList = (List<String>) query.get("groupBy");
+      String[] groupBy = (groupByList == null) ? null :
+          groupByList.toArray(new String[groupByList.size()]);
+      Boolean includeKeyValueStoreMap = (Boolean) query.get("includeKeyValueStoreMap");
+      request = new ExecutorRequest(ExecutorRequestType.USER_TABLE_QUERY, tableId,
+          (String) query.get("whereClause"), bindArgs, groupBy, (String) query.get("having"),
+          (String) query.get("orderByElementKey"), (String) query.get("orderByDirection"),
+          limit, offset, Boolean.TRUE.equals(includeKeyValueStoreMap), metaDataRev,
+          callbackJSON, getFragmentID());
+    }
+    return request;
+  }
+
+  /**
+   * Release a live query registered with subscribe().
+   *
+   * @param subscriptionId
+   * @return true if the subscription existed
+   */
+  public boolean unsubscribe(String subscriptionId) {
+    logDebug("unsubscribe: ", subscriptionId);
+    return context.unsubscribe(subscriptionId);
+  }
+
+  private static Integer asInteger(Object value) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    return Integer.valueOf(value.toString());
+  }
+
   /**
    * Get all rows that match the given rowId.
    * This can be zero, one or more. It is more than one if there
@@ -356,7 +586,7 @@ public class OdkData {
    *                     that can process the response
    */
   public void getRows(String tableId, String rowId, String metaDataRev, String callbackJSON) {
-    logDebug("getRows: " + tableId + " _id: " + rowId);
+    logDebug("getRows: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.USER_TABLE_GET_ROWS, tableId,
         null, rowId, metaDataRev, callbackJSON, getFragmentID());
 
@@ -374,7 +604,7 @@ public class OdkData {
    *                     that can process the response
    */
   public void getMostRecentRow(String tableId, String rowId, String metaDataRev, String callbackJSON) {
-    logDebug("getMostRecentRow: " + tableId + " _id: " + rowId);
+    logDebug("getMostRecentRow: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(
         ExecutorRequestType.USER_TABLE_GET_MOST_RECENT_ROW, tableId, null, rowId, metaDataRev, callbackJSON,
         getFragmentID());
@@ -394,7 +624,7 @@ public class OdkData {
    */
   public void updateRow(String tableId, String stringifiedJSON, String rowId,
                         String metaDataRev, String callbackJSON) {
-    logDebug("updateRow: " + tableId + " _id: " + rowId);
+    logDebug("updateRow: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.USER_TABLE_UPDATE_ROW,
         tableId, stringifiedJSON, rowId, metaDataRev, callbackJSON, getFragmentID());
 
@@ -414,7 +644,7 @@ public class OdkData {
       owner, String groupReadOnly, String groupModify, String groupPrivileged, String
       rowId, String metaDataRev, String callbackJSON) {
 
-    logDebug("changeAccessFilter: " + tableId + " _id: " + rowId);
+    logDebug("changeAccessFilter: ", tableId, " _id: ", rowId);
     HashMap<String,String> valueMap = new HashMap<String,String>();
     valueMap.put(DataTableColumns.DEFAULT_ACCESS, defaultAccess);
     valueMap.put(DataTableColumns.ROW_OWNER, owner);
@@ -446,7 +676,7 @@ public class OdkData {
    *                        that can process the response
    */
   public void deleteRow(String tableId, String stringifiedJSON, String rowId, String metaDataRev, String callbackJSON) {
-    logDebug("deleteRow: " + tableId + " _id: " + rowId);
+    logDebug("deleteRow: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.USER_TABLE_DELETE_ROW,
         tableId, stringifiedJSON, rowId, metaDataRev, callbackJSON, getFragmentID());
 
@@ -463,7 +693,7 @@ public class OdkData {
    *                        that can process the response
    */
   public void addRow(String tableId, String stringifiedJSON, String rowId, String metaDataRev, String callbackJSON) {
-    logDebug("addRow: " + tableId + " _id: " + rowId);
+    logDebug("addRow: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.USER_TABLE_ADD_ROW, tableId,
         stringifiedJSON, rowId, metaDataRev, callbackJSON, getFragmentID());
 
@@ -481,7 +711,7 @@ public class OdkData {
    */
   public void addCheckpoint(String tableId, String stringifiedJSON, String rowId,
                             String metaDataRev, String callbackJSON) {
-    logDebug("addCheckpoint: " + tableId + " _id: " + rowId);
+    logDebug("addCheckpoint: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.USER_TABLE_ADD_CHECKPOINT,
         tableId, stringifiedJSON, rowId, metaDataRev, callbackJSON, getFragmentID());
 
@@ -499,7 +729,7 @@ public class OdkData {
    */
   public void saveCheckpointAsIncomplete(String tableId, String stringifiedJSON, String rowId,
                                          String metaDataRev, String callbackJSON) {
-    logDebug("saveCheckpointAsIncomplete: " + tableId + " _id: " + rowId);
+    logDebug("saveCheckpointAsIncomplete: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(
         ExecutorRequestType.USER_TABLE_SAVE_CHECKPOINT_AS_INCOMPLETE, tableId, stringifiedJSON,
         rowId, metaDataRev, callbackJSON, getFragmentID());
@@ -518,7 +748,7 @@ public class OdkData {
    */
   public void saveCheckpointAsComplete(String tableId, String stringifiedJSON, String rowId,
                                        String metaDataRev, String callbackJSON) {
-    logDebug("saveCheckpointAsComplete: " + tableId + " _id: " + rowId);
+    logDebug("saveCheckpointAsComplete: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(
         ExecutorRequestType.USER_TABLE_SAVE_CHECKPOINT_AS_COMPLETE, tableId, stringifiedJSON, rowId,
         metaDataRev, callbackJSON, getFragmentID());
@@ -535,7 +765,7 @@ public class OdkData {
    *                     that can process the response
    */
   public void deleteAllCheckpoints(String tableId, String rowId, String metaDataRev, String callbackJSON) {
-    logDebug("deleteAllCheckpoints: " + tableId + " _id: " + rowId);
+    logDebug("deleteAllCheckpoints: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(
         ExecutorRequestType.USER_TABLE_DELETE_ALL_CHECKPOINTS, tableId, null, rowId,
         metaDataRev, callbackJSON, getFragmentID());
@@ -552,7 +782,7 @@ public class OdkData {
    *                     that can process the response
    */
   public void deleteLastCheckpoint(String tableId, String rowId, String metaDataRev, String callbackJSON) {
-    logDebug("deleteLastCheckpoint: " + tableId + " _id: " + rowId);
+    logDebug("deleteLastCheckpoint: ", tableId, " _id: ", rowId);
     ExecutorRequest request = new ExecutorRequest(
         ExecutorRequestType.USER_TABLE_DELETE_LAST_CHECKPOINT, tableId, null, rowId,
         metaDataRev, callbackJSON, getFragmentID());
@@ -560,6 +790,24 @@ public class OdkData {
     queueRequest(request);
   }
 
+  /**
+   * Compact checkpoints. Removes all but the most recent checkpoint of the row, or of every
+   * row in the table. Rows that have never been saved are left alone.
+   *
+   * @param tableId      The table being compacted
+   * @param rowId        The rowId of the row to compact, or null to compact every row
+   * @param callbackJSON The JSON object used by the JS layer to recover the callback function
+   *                     that can process the response
+   */
+  public void compactCheckpoints(String tableId, String rowId, String callbackJSON) {
+    logDebug("compactCheckpoints: ", tableId, " _id: ", rowId);
+    ExecutorRequest request = new ExecutorRequest(
+        ExecutorRequestType.USER_TABLE_COMPACT_CHECKPOINTS, tableId, null, rowId, null,
+        callbackJSON, getFragmentID());
+
+    queueRequest(request);
+  }
+
   /****** LOCAL TABLE functions ******/
   /**
    * Create local table with columns
@@ -572,7 +820,7 @@ public class OdkData {
   public void createLocalOnlyTableWithColumns(String tableId, String stringifiedJSON,
                                               String callbackJSON) {
 
-    logDebug("createLocalOnlyTableWithColumns: " + tableId);
+    logDebug("createLocalOnlyTableWithColumns: ", tableId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.LOCAL_TABLE_CREATE_TABLE,
             tableId, stringifiedJSON, null, null, null, callbackJSON, getFragmentID());
     queueRequest(request);
@@ -587,7 +835,7 @@ public class OdkData {
    */
   public void deleteLocalOnlyTable(String tableId, String callbackJSON) {
 
-    logDebug("deleteLocalOnlyTable: " + tableId);
+    logDebug("deleteLocalOnlyTable: ", tableId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.LOCAL_TABLE_DELETE_TABLE,
             tableId, null, null, null, null, callbackJSON, getFragmentID());
     queueRequest(request);
@@ -603,7 +851,7 @@ public class OdkData {
    */
   public void insertLocalOnlyRow(String tableId, String stringifiedJSON, String callbackJSON) {
 
-    logDebug("insertLocalOnlyRow: " + tableId);
+    logDebug("insertLocalOnlyRow: ", tableId);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.LOCAL_TABLE_INSERT_ROW,
             tableId, stringifiedJSON, null, null, null, callbackJSON, getFragmentID());
 
@@ -623,7 +871,7 @@ public class OdkData {
   public void updateLocalOnlyRows(String tableId, String stringifiedJSON, String whereClause,
                                  String sqlBindParamsJSON, String callbackJSON) {
 
-    logDebug("updateLocalOnlyRows: " + tableId + " whereClause: " + whereClause);
+    logDebug("updateLocalOnlyRows: ", tableId, " whereClause: ", whereClause);
     BindArgs bindArgs = new BindArgs(sqlBindParamsJSON);
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.LOCAL_TABLE_UPDATE_ROW,
             tableId, stringifiedJSON, null, whereClause, bindArgs, callbackJSON, getFragmentID());
@@ -643,7 +891,7 @@ public class OdkData {
   public void deleteLocalOnlyRows(String tableId, String whereClause, String sqlBindParamsJSON,
                                   String callbackJSON) {
 
-    logDebug("deleteLocalOnlyRows: " + tableId + " whereClause: " + whereClause);
+    logDebug("deleteLocalOnlyRows: ", tableId, " whereClause: ", whereClause);
     BindArgs bindArgs = new BindArgs(sqlBindParamsJSON);
 
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.LOCAL_TABLE_DELETE_ROW,
@@ -672,7 +920,7 @@ public class OdkData {
                                          String[] groupBy, String having, String orderByElementKey,
                                          String orderByDirection, Integer limit, Integer offset,
                                          String callbackJSON) {
-    logDebug("simpleQueryLocalOnlyTables: " + tableId + " whereClause: " + whereClause);
+    logDebug("simpleQueryLocalOnlyTables: ", tableId, " whereClause: ", whereClause);
     BindArgs bindArgs = new BindArgs(sqlBindParamsJSON);
 
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.LOCAL_TABLE_SIMPLE_QUERY,
@@ -702,7 +950,7 @@ public class OdkData {
   public void arbitrarySqlQueryLocalOnlyTables(String tableId, String sqlCommand, String sqlBindParamsJSON,
                                                Integer limit, Integer offset, String callbackJSON) {
 
-    logDebug("arbitrarySqlQueryLocalOnlyTables: " + tableId + " sqlCommand: " + sqlCommand);
+    logDebug("arbitrarySqlQueryLocalOnlyTables: ", tableId, " sqlCommand: ", sqlCommand);
     BindArgs bindArgs = new BindArgs(sqlBindParamsJSON);
 
     ExecutorRequest request = new ExecutorRequest(ExecutorRequestType.LOCAL_TABLE_ARBITRARY_QUERY,
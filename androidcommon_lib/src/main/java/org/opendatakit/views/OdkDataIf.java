@@ -304,6 +304,39 @@ public class OdkDataIf {
     weakData.get().arbitraryQuery(tableId, sqlCommand, sqlBindParamsJSON, integerLimit, integerOffset, metaDataRev, callbackJSON);
   }
 
+  /**
+   * Register a live query. The query result is delivered now and again, to the same
+   * callbackJSON, after each write to the query's tableId. Several writes in quick
+   * succession result in a single refresh.
+   *
+   * @param queryJSON    JSON.stringify of { tableId: ..., whereClause: ..., sqlBindParams: [...],
+   *                     groupBy: [...], having: ..., orderByElementKey: ..., orderByDirection: ...,
+   *                     limit: ..., offset: ..., includeKeyValueStoreMap: ..., metaDataRev: ... }
+   *                     or, for an arbitrary query, of { tableId: ..., sqlCommand: ...,
+   *                     sqlBindParams: [...], limit: ..., offset: ..., metaDataRev: ... }
+   * @param callbackJSON The JSON object used by the JS layer to recover the callback function
+   *                     that can process the responses
+   * @return the subscription id, or null if the queryJSON is not valid
+   */
+  @android.webkit.JavascriptInterface public String subscribe(String queryJSON,
+      String callbackJSON) {
+    if (isInactive())
+      return null;
+    return weakData.get().subscribe(queryJSON, callbackJSON);
+  }
+
+  /**
+   * Release a live query.
+   *
+   * @param subscriptionId the value returned by subscribe()
+   * @return true if the subscription was found
+   */
+  @android.webkit.JavascriptInterface public boolean unsubscribe(String subscriptionId) {
+    if (isInactive())
+      return false;
+    return weakData.get().unsubscribe(subscriptionId);
+  }
+
   /**
    * Get all rows that match the given rowId.
    * This can be zero, one or more. It is more than one if there
@@ -497,6 +530,23 @@ public class OdkDataIf {
     weakData.get().deleteLastCheckpoint(tableId, rowId, metaDataRev, callbackJSON);
   }
 
+  /**
+   * Compact checkpoints. Removes all but the most recent checkpoint of the row, or of every
+   * row in the table. Rows that have never been saved are left alone. The metadata of the response reports the number of rows compacted
+   * (compactedRowCount) and of checkpoints removed (reclaimedCheckpointCount).
+   *
+   * @param tableId      The table being compacted
+   * @param rowId        The rowId of the row to compact, or null to compact every row of the table
+   * @param callbackJSON The JSON object used by the JS layer to recover the callback function
+   *                     that can process the response
+   */
+  @android.webkit.JavascriptInterface public void compactCheckpoints(String tableId, String rowId,
+      String callbackJSON) {
+    if (isInactive())
+      return;
+    weakData.get().compactCheckpoints(tableId, rowId, callbackJSON);
+  }
+
   /****** LOCAL TABLE functions ******/
   /**
    * Create local only table with columns
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import android.os.SystemClock;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timeline of one page load in an ODKWebView: when the load was requested,
+ * when the page started and finished loading, each resource it loaded, when the
+ * framework reported that it had loaded, and when the first odkData request
+ * was made and its first response delivered.
+ * <p>
+ * Times are in milliseconds since the load was requested. The timeline is
+ * appended, as a single line of JSON, to pageLoadTimeline.log in the logging
+ * folder of the app once the framework has loaded and the first response has
+ * been delivered. A page that has no framework or never queries the database
+ * is written PAGE_FINISHED_SETTLE_MS after onPageFinished, and a page that
+ * never finishes loading is written LOAD_TIMEOUT_MS after the load was
+ * requested. The "trigger" field of the line records which of these applied.
+ */
+public final class PageLoadTimeline {
+
+  private static final String TAG = PageLoadTimeline.class.getSimpleName();
+
+  static final String LOAD_PAGE = "loadPageOnUiThread";
+  static final String PAGE_STARTED = "onPageStarted";
+  static final String PAGE_FINISHED = "onPageFinished";
+  static final String FRAMEWORK_LOADED = "frameworkHasLoaded";
+  static final String VIEW_DATA_PREFETCH = "viewDataPrefetch";
+  static final String FIRST_DATA_REQUEST = "firstDataRequest";
+  static final String FIRST_RESPONSE = "firstResponseAvailable";
+
+  private static final String LOG_FILE_NAME = "pageLoadTimeline.log";
+  private static final long MAX_LOG_FILE_SIZE = 1024L * 1024L;
+  private static final int MAX_RESOURCES = 200;
+
+  /**
+   * How long after onPageFinished to wait for the framework and first response.
+   */
+  private static final long PAGE_FINISHED_SETTLE_MS = 5000L;
+  /**
+   * How long after the load was requested to wait for the timeline to complete.
+   */
+  private static final long LOAD_TIMEOUT_MS = 30000L;
+
+  static final String TRIGGER_COMPLETE = "complete";
+  static final String TRIGGER_PAGE_FINISHED = "pageFinished";
+  static final String TRIGGER_TIMEOUT = "timeout";
+  static final String TRIGGER_SUPERSEDED = "superseded";
+
+  private static final ScheduledExecutorService writer = Executors
+      .newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, TAG);
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+
+  private static final class Event {
+    final String name;
+    final long elapsed;
+    final String detail;
+
+    Event(String name, long elapsed, String detail) {
+      this.name = name;
+      this.elapsed = elapsed;
+      this.detail = detail;
+    }
+  }
+
+  private final String appName;
+  private final String containerFragmentID;
+  private final String url;
+  private final long startTime;
+  private final long startElapsed;
+
+  // guarded by 'this'
+  private final List<Event> events = new ArrayList<Event>();
+  private final Set<String> onceEvents = new HashSet<String>();
+  private int resourceCount = 0;
+  private boolean written = false;
+  private String trigger = null;
+
+  PageLoadTimeline(String appName, String containerFragmentID, String url) {
+    this.appName = appName;
+    this.containerFragmentID = containerFragmentID;
+    this.url = url;
+    this.startTime = System.currentTimeMillis();
+    this.startElapsed = SystemClock.elapsedRealtime();
+    mark(LOAD_PAGE, url);
+    writeAfter(TRIGGER_TIMEOUT, LOAD_TIMEOUT_MS);
+  }
+
+  public String getContainerFragmentID() {
+    return containerFragmentID;
+  }
+
+  synchronized void mark(String name, String detail) {
+    events.add(new Event(name, SystemClock.elapsedRealtime() - startElapsed, detail));
+    if (PAGE_FINISHED.equals(name)) {
+      writeAfter(TRIGGER_PAGE_FINISHED, PAGE_FINISHED_SETTLE_MS);
+    }
+    maybeWrite();
+  }
+
+  /**
+   * Record the event only if it has not already been recorded.
+   */
+  synchronized void markOnce(String name, String detail) {
+    if (onceEvents.add(name)) {
+      mark(name, detail);
+    }
+  }
+
+  synchronized void markResource(String resourceUrl) {
+    ++resourceCount;
+    if (resourceCount <= MAX_RESOURCES) {
+      events.add(new Event("resource", SystemClock.elapsedRealtime() - startElapsed, resourceUrl));
+    }
+  }
+
+  /**
+   * @return the timeline as a JSON-serializable map
+   */
+  public synchronized Map<String, Object> toMap() {
+    Map<String, Object> map = new TreeMap<String, Object>();
+    map.put("appName", appName);
+    map.put("containerFragmentID", containerFragmentID);
+    map.put("url", url);
+    map.put("startTime", startTime);
+    map.put("resourceCount", resourceCount);
+    if (trigger != null) {
+      map.put("trigger", trigger);
+    }
+    List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(events.size());
+    for (Event e : events) {
+      Map<String, Object> entry = new TreeMap<String, Object>();
+      entry.put("event", e.name);
+      entry.put("ms", e.elapsed);
+      if (e.detail != null) {
+        entry.put("detail", e.detail);
+      }
+      list.add(entry);
+    }
+    map.put("events", list);
+    return map;
+  }
+
+  public String toJson() {
+    try {
+      return ODKFileUtils.mapper.writeValueAsString(toMap());
+    } catch (JsonProcessingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return null;
+    }
+  }
+
+  private void maybeWrite() {
+    if (onceEvents.contains(FRAMEWORK_LOADED) && onceEvents.contains(FIRST_RESPONSE)) {
+      write(TRIGGER_COMPLETE);
+    }
+  }
+
+  private void writeAfter(final String reason, long delayMs) {
+    if (written) {
+      return;
+    }
+    writer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        write(reason);
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Append the timeline to the log file unless it has already been written.
+   *
+   * @param reason one of the TRIGGER_ values
+   */
+  synchronized void write(String reason) {
+    if (written) {
+      return;
+    }
+    written = true;
+    trigger = reason;
+    dump();
+  }
+
+  /**
+   * Append the timeline to the log file of the app on a background thread.
+   */
+  public void dump() {
+    final String json = toJson();
+    if (json == null) {
+      return;
+    }
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        File logFile = new File(ODKFileUtils.getLoggingFolder(appName), LOG_FILE_NAME);
+        if (logFile.length() > MAX_LOG_FILE_SIZE) {
+          File oldFile = new File(logFile.getPath() + ".1");
+          if (oldFile.exists() && !oldFile.delete()) {
+            WebLogger.getLogger(appName).w(TAG, "unable to delete " + oldFile.getPath());
+          }
+          if (!logFile.renameTo(oldFile)) {
+            WebLogger.getLogger(appName).w(TAG, "unable to rename " + logFile.getPath());
+          }
+        }
+        Writer out = null;
+        try {
+          out = new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8");
+          out.write(json);
+          out.write("\n");
+        } catch (IOException e) {
+          WebLogger.getLogger(appName).w(TAG, "unable to write " + logFile.getPath());
+          WebLogger.getLogger(appName).printStackTrace(e);
+        } finally {
+          if (out != null) {
+            try {
+              out.close();
+            } catch (IOException e) {
+              WebLogger.getLogger(appName).printStackTrace(e);
+            }
+          }
+        }
+      }
+    });
+  }
+}
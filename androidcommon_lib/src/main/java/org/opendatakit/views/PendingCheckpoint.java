@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.views;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * USER_TABLE_ADD_CHECKPOINT requests for one (tableId, rowId) that are being
+ * held back by the ExecutorContext so that a burst of them is written as a
+ * single checkpoint.
+ * <p>
+ * The column values of the requests are merged, later values replacing
+ * earlier ones. When written, the response of the merged request is
+ * delivered to the callbackJSON of every request that was merged into it.
+ * <p>
+ * All fields other than the final ones are guarded by the ExecutorContext mutex.
+ */
+final class PendingCheckpoint {
+
+  private static final TypeReference<LinkedHashMap<String, Object>> MAP_TYPE =
+      new TypeReference<LinkedHashMap<String, Object>>() {
+      };
+
+  final String key;
+  final String tableId;
+  final String rowId;
+  final String callerID;
+
+  private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+  private String metaDataRev;
+  private String callbackJSON;
+  /**
+   * The callbackJSONs of the requests that have been merged into this one.
+   */
+  private final List<String> supersededCallbacks = new ArrayList<String>();
+
+  /**
+   * The scheduled write, or null if none.
+   */
+  ScheduledFuture<?> flush = null;
+
+  PendingCheckpoint(ExecutorRequest request) throws IOException {
+    this.key = getKey(request);
+    this.tableId = request.tableId;
+    this.rowId = request.rowId;
+    this.callerID = request.callerID;
+    merge(request);
+  }
+
+  static String getKey(ExecutorRequest request) {
+    return request.tableId + "/" + request.rowId;
+  }
+
+  boolean isSameCaller(ExecutorRequest request) {
+    return (callerID == null) ? (request.callerID == null) : callerID.equals(request.callerID);
+  }
+
+  /**
+   * Merge a later request for the same row and caller into this one.
+   *
+   * @param request
+   * @throws IOException if its stringifiedJSON is not a JSON object
+   */
+  void merge(ExecutorRequest request) throws IOException {
+    if (request.stringifiedJSON != null) {
+      Map<String, Object> update = ODKFileUtils.mapper.readValue(request.stringifiedJSON, MAP_TYPE);
+      values.putAll(update);
+    }
+    metaDataRev = request.metaDataRev;
+    if (request.callbackJSON != null) {
+      if (callbackJSON != null) {
+        supersededCallbacks.add(callbackJSON);
+      }
+      callbackJSON = request.callbackJSON;
+    }
+  }
+
+  /**
+   * @return the callbackJSONs that should receive the response of the merged request
+   */
+  List<String> getSupersededCallbacks() {
+    return supersededCallbacks;
+  }
+
+  /**
+   * @return the merged request
+   * @throws IOException
+   */
+  ExecutorRequest toRequest() throws IOException {
+    String stringifiedJSON = ODKFileUtils.mapper.writeValueAsString(values);
+    return new ExecutorRequest(ExecutorRequestType.USER_TABLE_ADD_CHECKPOINT, tableId,
+        stringifiedJSON, rowId, metaDataRev, callbackJSON, callerID);
+  }
+}
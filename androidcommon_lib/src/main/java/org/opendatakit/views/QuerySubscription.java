@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import java.util.UUID;
+
+/**
+ * A query registered via odkData.subscribe(). The query is re-run, and its
+ * result delivered to the same callbackJSON, whenever a write to its tableId
+ * completes.
+ * <p>
+ * refreshQueued is guarded by the ExecutorContext mutex.
+ */
+final class QuerySubscription {
+
+  final String id;
+  final String tableId;
+  /**
+   * The query; the same request object is queued for every refresh.
+   */
+  final ExecutorRequest request;
+
+  /**
+   * true if the request is in the work queue. Further writes to the table
+   * before it runs do not queue another refresh.
+   */
+  boolean refreshQueued = false;
+
+  QuerySubscription(ExecutorRequest request) {
+    this.id = UUID.randomUUID().toString();
+    this.tableId = request.tableId;
+    this.request = request;
+  }
+}
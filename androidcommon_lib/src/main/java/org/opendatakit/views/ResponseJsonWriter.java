@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the success and error responses sent back to the odkData
+ * javascript interface.
+ *
+ * The response is streamed through a shared ObjectWriter into a character
+ * buffer that is recycled by the calling thread. The buffer is pre-sized from
+ * a running estimate of the response size for each tableId, so it rarely has
+ * to grow while a response is being written. A buffer that grew past
+ * MAX_RETAINED_CAPACITY is released as soon as its response has been copied
+ * out, so one very large response does not pin that memory to the thread.
+ */
+final class ResponseJsonWriter {
+
+  private static final int MIN_CAPACITY = 1024;
+  /**
+   * Buffers larger than this are not kept between responses.
+   */
+  private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+  private static final String DEFAULT_SIZE_KEY = "";
+  /**
+   * Maximum number of tableIds whose response size is estimated.
+   */
+  private static final int MAX_SIZE_ESTIMATES = 64;
+
+  private static final ObjectWriter objectWriter = ODKFileUtils.mapper.writer();
+
+  private static final ThreadLocal<RecyclableCharWriter> buffers =
+      new ThreadLocal<RecyclableCharWriter>() {
+        @Override
+        protected RecyclableCharWriter initialValue() {
+          return new RecyclableCharWriter();
+        }
+      };
+
+  /**
+   * sizeKey (tableId) => running estimate of the response length in chars,
+   * least-recently-used first
+   */
+  private static final Map<String, Integer> sizeEstimates =
+      new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+          return size() > MAX_SIZE_ESTIMATES;
+        }
+      };
+
+  private ResponseJsonWriter() {
+  }
+
+  /**
+   * A Writer over a char array that is reused across responses.
+   */
+  private static final class RecyclableCharWriter extends Writer {
+    private char[] buf = new char[MIN_CAPACITY];
+    private int count = 0;
+
+    void reset(int expectedSize) {
+      count = 0;
+      if (buf.length < expectedSize) {
+        buf = new char[Math.max(MIN_CAPACITY, expectedSize)];
+      }
+    }
+
+    /**
+     * @return the response written since the last reset; the buffer is
+     * dropped if it is too large to keep for the next response
+     */
+    String takeString() {
+      String value = new String(buf, 0, count);
+      count = 0;
+      if (buf.length > MAX_RETAINED_CAPACITY) {
+        buf = new char[MIN_CAPACITY];
+      }
+      return value;
+    }
+
+    private void ensureCapacity(int needed) {
+      if (needed > buf.length) {
+        int newLength = Math.max(needed, buf.length + (buf.length >> 1));
+        char[] newBuf = new char[newLength];
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        buf = newBuf;
+      }
+    }
+
+    @Override
+    public void write(int c) {
+      ensureCapacity(count + 1);
+      buf[count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      ensureCapacity(count + len);
+      System.arraycopy(cbuf, off, buf, count, len);
+      count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      ensureCapacity(count + len);
+      str.getChars(off, off + len, buf, count);
+      count += len;
+    }
+
+    int size() {
+      return count;
+    }
+
+    @Override
+    public String toString() {
+      return new String(buf, 0, count);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static int getEstimate(String sizeKey) {
+    synchronized (sizeEstimates) {
+      Integer estimate = sizeEstimates.get(sizeKey);
+      return (estimate == null) ? MIN_CAPACITY : estimate;
+    }
+  }
+
+  private static void updateEstimate(String sizeKey, int actualSize) {
+    synchronized (sizeEstimates) {
+      Integer estimate = sizeEstimates.get(sizeKey);
+      // weighted running average, biased toward the history
+      int updated = (estimate == null) ? actualSize : (3 * estimate + actualSize) / 4;
+      sizeEstimates.put(sizeKey, updated);
+    }
+  }
+
+  private static RecyclableCharWriter acquire(String sizeKey) {
+    RecyclableCharWriter writer = buffers.get();
+    int estimate = getEstimate(sizeKey);
+    // allow some headroom over the running average
+    writer.reset(estimate + (estimate >> 3));
+    return writer;
+  }
+
+  /**
+   * @param sizeKey     key used to estimate the size of the response (e.g., tableId). May be null.
+   * @param callbackJSON
+   * @param transId     may be null
+   * @param data        may be null
+   * @param metadata    may be null
+   * @return the serialized success response
+   * @throws IOException
+   */
+  static String writeSuccess(String sizeKey, String callbackJSON, String transId,
+      ArrayList<List<Object>> data, Map<String, Object> metadata) throws IOException {
+    String key = (sizeKey == null) ? DEFAULT_SIZE_KEY : sizeKey;
+    RecyclableCharWriter writer = acquire(key);
+    JsonGenerator g = ODKFileUtils.mapper.getFactory().createGenerator(writer);
+    try {
+      g.writeStartObject();
+      g.writeStringField("callbackJSON", callbackJSON);
+      if (transId != null) {
+        g.writeStringField("transId", transId);
+      }
+      if (data != null) {
+        g.writeFieldName("data");
+        objectWriter.writeValue(g, data);
+      }
+      if (metadata != null) {
+        g.writeFieldName("metadata");
+        objectWriter.writeValue(g, metadata);
+      }
+      g.writeEndObject();
+    } finally {
+      g.close();
+    }
+    updateEstimate(key, writer.size());
+    return writer.takeString();
+  }
+
+  /**
+   * @param callbackJSON
+   * @param transId      may be null
+   * @param errorMessage
+   * @return the serialized error response
+   * @throws IOException
+   */
+  static String writeError(String callbackJSON, String transId, String errorMessage)
+      throws IOException {
+    RecyclableCharWriter writer = buffers.get();
+    writer.reset(MIN_CAPACITY);
+    JsonGenerator g = ODKFileUtils.mapper.getFactory().createGenerator(writer);
+    try {
+      g.writeStartObject();
+      g.writeStringField("callbackJSON", callbackJSON);
+      g.writeStringField("error", errorMessage);
+      if (transId != null) {
+        g.writeStringField("transId", transId);
+      }
+      g.writeEndObject();
+    } finally {
+      g.close();
+    }
+    return writer.takeString();
+  }
+
+  /**
+   * Rewrite a response so that it carries a different callbackJSON. Both
+   * writeSuccess and writeError emit callbackJSON as the first field, so this
+   * is a prefix replacement.
+   *
+   * @param response        the serialized response
+   * @param callbackJSON    the callbackJSON it was written with
+   * @param newCallbackJSON
+   * @return the response for newCallbackJSON
+   * @throws JsonProcessingException
+   */
+  static String replaceCallbackJSON(String response, String callbackJSON,
+      String newCallbackJSON) throws JsonProcessingException {
+    String prefix = "{\"callbackJSON\":" + ODKFileUtils.mapper.writeValueAsString(callbackJSON);
+    if (!response.startsWith(prefix)) {
+      throw new IllegalStateException("unexpected response layout");
+    }
+    return "{\"callbackJSON\":" + ODKFileUtils.mapper.writeValueAsString(newCallbackJSON) +
+        response.substring(prefix.length());
+  }
+}
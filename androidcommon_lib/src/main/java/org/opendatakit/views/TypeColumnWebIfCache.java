@@ -4,59 +4,141 @@ import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.provider.DataTableColumns;
 
 import java.util.HashMap;
 
+/**
+ * The web interface type of each column of a result set, used to convert the
+ * cells of a result row into the types passed to the odkData web interface.
+ *
+ * The types are held in an array indexed by column position so that the
+ * per-cell path is an array access rather than a map lookup. An instance
+ * depends only on the OrderedColumns and the element keys of the result set,
+ * and can be reused (see {@link #matches}) across queries of the same table.
+ *
+ * Cells of a BaseTable can be decoded straight from the untyped Row, which
+ * avoids allocating a TypedRow wrapper for every row of a result set.
+ */
 public class TypeColumnWebIfCache {
-   HashMap<String, Class> nameCache;
-   HashMap<Integer, Class> indexCache;
+
+   private final OrderedColumns orderedColumns;
+   private final String[] elementKeys;
+   private final Class<?>[] types;
+   private final HashMap<String, Class<?>> nameCache;
 
    public TypeColumnWebIfCache(OrderedColumns orderedColumns, BaseTable baseTable) {
-      nameCache = new HashMap<String, Class>();
-      indexCache = new HashMap<Integer, Class>();
+      this.orderedColumns = orderedColumns;
 
       if (orderedColumns == null || baseTable == null) {
+         elementKeys = new String[0];
+         types = new Class<?>[0];
+         nameCache = new HashMap<String, Class<?>>();
          return;
       }
 
+      int width = baseTable.getWidth();
+      elementKeys = new String[width];
+      types = new Class<?>[width];
+      nameCache = new HashMap<String, Class<?>>();
+
       // remember to keep in sync with TypedRow function getColumnDataType
-      for (int index = 0; index < baseTable.getWidth(); index++) {
+      for (int index = 0; index < width; index++) {
          String key = baseTable.getElementKey(index);
+         Class<?> clazz;
          try {
             ColumnDefinition columnDefinition = orderedColumns.find(key);
             ElementDataType dataType = columnDefinition.getType().getDataType();
-            Class clazz = TypedRow.getOdkDataWebIfType(dataType);
-            nameCache.put(key, clazz);
-            indexCache.put(index, clazz);
+            clazz = TypedRow.getOdkDataWebIfType(dataType);
 
          } catch (IllegalArgumentException ile) {
             // Logic for the admin columns, all but CONFLICT_TYPE are strings
             // AND also defaults to string in case usage
             // of alias column names being return
             if (DataTableColumns.CONFLICT_TYPE.equals(key)) {
-               nameCache.put(DataTableColumns.CONFLICT_TYPE, Integer.class);
-               indexCache.put(index, Integer.class);
+               clazz = Integer.class;
             } else {
-               nameCache.put(key, String.class);
-               indexCache.put(index, String.class);
+               clazz = String.class;
             }
          }
+         elementKeys[index] = key;
+         types[index] = clazz;
+         nameCache.put(key, clazz);
+      }
+   }
+
+   /**
+    * Convert the raw string value of a cell to the web interface type.
+    * Mirrors what TypedRow.getDataType does for these types.
+    */
+   private static Object decodeRaw(Class<?> clazz, String value) {
+      if (value == null || clazz == String.class) {
+         return value;
+      } else if (clazz == Long.class) {
+         return Long.valueOf(value);
+      } else if (clazz == Double.class) {
+         return Double.valueOf(value);
+      } else if (clazz == Integer.class) {
+         return Integer.valueOf(value);
+      } else if (clazz == Boolean.class) {
+         // booleans are stored as 0/1 but accept true/false as well
+         return (value.equals("1") || value.equalsIgnoreCase("true")) ? Boolean.TRUE : Boolean.FALSE;
       }
+      return value;
+   }
+
+   /**
+    * @param orderedColumns
+    * @param baseTable
+    * @return true if this instance was built for these column definitions and
+    * the same result-set columns, in the same order.
+    */
+   boolean matches(OrderedColumns orderedColumns, BaseTable baseTable) {
+      if (orderedColumns == null || baseTable == null || this.orderedColumns != orderedColumns) {
+         return false;
+      }
+      if (baseTable.getWidth() != elementKeys.length) {
+         return false;
+      }
+      for (int index = 0; index < elementKeys.length; index++) {
+         if (!elementKeys[index].equals(baseTable.getElementKey(index))) {
+            return false;
+         }
+      }
+      return true;
    }
 
    Object getOdkDataWebIfDataByIndex(int i, TypedRow row) {
-      if (indexCache.containsKey(i)) {
-         return row.getDataType(i, this.indexCache.get(i));
+      if (i >= 0 && i < types.length) {
+         return row.getDataType(i, types[i]);
       } else {
          return row.getDataType(i, String.class);
       }
    }
 
+   /**
+    * Decode the cell directly from the untyped Row, without wrapping
+    * the row in a TypedRow.
+    *
+    * @param i    the column index
+    * @param row  a row of the BaseTable this instance was built for
+    * @return the typed value for the web interface
+    */
+   Object getOdkDataWebIfDataByIndex(int i, Row row) {
+      String value = row.getRawStringByIndex(i);
+      if (i >= 0 && i < types.length) {
+         return decodeRaw(types[i], value);
+      } else {
+         return value;
+      }
+   }
+
    Object getOdkDataWebIfDataByKey(String key, TypedRow row) {
-      if (nameCache.containsKey(key)) {
-         return row.getDataType(key, this.nameCache.get(key));
+      Class<?> clazz = nameCache.get(key);
+      if (clazz != null) {
+         return row.getDataType(key, clazz);
       } else {
          return row.getDataType(key, String.class);
       }
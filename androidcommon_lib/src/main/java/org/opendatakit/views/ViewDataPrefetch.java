@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.opendatakit.database.queries.BindArgs;
+import org.opendatakit.utilities.StaticStateManipulator;
+import org.opendatakit.utilities.StaticStateManipulator.IStaticFieldManipulator;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A view query that was issued while the page was loading, before the
+ * javascript asked for it via odkData.getViewData().
+ * <p>
+ * The request is queued with a placeholder callbackJSON (the token). The
+ * response is held until getViewData() claims the prefetch, at which point
+ * the placeholder is replaced by the callbackJSON of the javascript caller.
+ * A getViewData() call only claims a prefetch whose query is identical to its
+ * own. If the prefetched query fails, the claiming request is queued as if
+ * there had been no prefetch.
+ * <p>
+ * The limit and offset of a getViewData() call are not known until the
+ * javascript makes it. The prefetch uses those of the last getViewData() call
+ * for the same view query (see {@link #recordPaging(ExecutorRequest)}); a view
+ * query that has not been requested yet is prefetched without a limit.
+ * <p>
+ * All fields other than the final ones are guarded by the ExecutorContext mutex.
+ */
+final class ViewDataPrefetch {
+
+  static final String TOKEN_PREFIX = "odkData-prefetch-";
+
+  private static final AtomicInteger counter = new AtomicInteger(0);
+
+  /**
+   * Maximum number of view queries whose paging is retained.
+   */
+  private static final int MAX_PAGED_QUERIES = 16;
+
+  /**
+   * view query (without limit and offset) => { limit, offset } of its last
+   * getViewData() call, least-recently-used first
+   */
+  private static final Map<String, Integer[]> paging =
+      new LinkedHashMap<String, Integer[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer[]> eldest) {
+          return size() > MAX_PAGED_QUERIES;
+        }
+      };
+
+  static {
+    // register a state-reset manipulator for 'paging' field.
+    StaticStateManipulator.get().register(new IStaticFieldManipulator() {
+
+      @Override
+      public void reset() {
+        synchronized (paging) {
+          paging.clear();
+        }
+      }
+
+    });
+  }
+
+  final String token;
+  /**
+   * The prefetched view query; its callbackJSON is the token.
+   */
+  final ExecutorRequest request;
+  final String callerID;
+  final long createdTime;
+
+  /**
+   * The serialized response, with the token as its callbackJSON, or null if
+   * the request has not yet completed.
+   */
+  String response = null;
+  /**
+   * The request of the getViewData() call that claimed this prefetch, or null
+   * if it has not been claimed.
+   */
+  ExecutorRequest claimedRequest = null;
+
+  /**
+   * @param token   the placeholder callbackJSON
+   * @param request the view query, with the token as its callbackJSON
+   */
+  ViewDataPrefetch(String token, ExecutorRequest request) {
+    this.token = token;
+    this.request = request;
+    this.callerID = request.callerID;
+    this.createdTime = System.currentTimeMillis();
+  }
+
+  /**
+   * @return a new placeholder callbackJSON for a prefetch request
+   */
+  static String newToken() {
+    return TOKEN_PREFIX + counter.incrementAndGet();
+  }
+
+  static boolean isToken(String callbackJSON) {
+    return callbackJSON != null && callbackJSON.startsWith(TOKEN_PREFIX);
+  }
+
+  /**
+   * @param request a view query
+   * @return a key identifying the rows it selects, ignoring its limit and offset
+   */
+  private static String getQueryKey(ExecutorRequest request) {
+    StringBuilder b = new StringBuilder();
+    b.append(request.executorRequestType).append('|').append(request.callerID)
+        .append('|').append(request.tableId).append('|').append(request.sqlCommand)
+        .append('|').append(request.whereClause)
+        .append('|').append((request.sqlBindParams == null) ? null :
+            Arrays.toString(request.sqlBindParams.bindArgs))
+        .append('|').append(Arrays.toString(request.groupBy)).append('|').append(request.having)
+        .append('|').append(request.orderByElementKey).append('|')
+        .append(request.orderByDirection);
+    return b.toString();
+  }
+
+  /**
+   * Remember the limit and offset of a getViewData() call so that the next
+   * prefetch of the same view query asks for the same page.
+   *
+   * @param request the view query of the getViewData() call
+   */
+  static void recordPaging(ExecutorRequest request) {
+    String key = getQueryKey(request);
+    synchronized (paging) {
+      paging.put(key, new Integer[] { request.limit, request.offset });
+    }
+  }
+
+  /**
+   * @param request a view query without a limit and offset
+   * @return the { limit, offset } of the last getViewData() call for the same
+   * view query, or null if there has been none
+   */
+  static Integer[] getPaging(ExecutorRequest request) {
+    String key = getQueryKey(request);
+    synchronized (paging) {
+      return paging.get(key);
+    }
+  }
+
+  private static boolean same(Object a, Object b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  private static boolean same(BindArgs a, BindArgs b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return Arrays.equals(a.bindArgs, b.bindArgs);
+  }
+
+  /**
+   * @param other the request of a getViewData() call
+   * @return true if other asks for exactly the rows this prefetch queried
+   */
+  boolean matches(ExecutorRequest other) {
+    return request.executorRequestType == other.executorRequestType &&
+        same(request.callerID, other.callerID) &&
+        same(request.tableId, other.tableId) &&
+        same(request.sqlCommand, other.sqlCommand) &&
+        same(request.whereClause, other.whereClause) &&
+        same(request.sqlBindParams, other.sqlBindParams) &&
+        Arrays.equals(request.groupBy, other.groupBy) &&
+        same(request.having, other.having) &&
+        same(request.orderByElementKey, other.orderByElementKey) &&
+        same(request.orderByDirection, other.orderByDirection) &&
+        same(request.limit, other.limit) &&
+        same(request.offset, other.offset) &&
+        request.includeFullMetadata == other.includeFullMetadata &&
+        same(request.metaDataRev, other.metaDataRev);
+  }
+
+  /**
+   * Rewrite the held response so that it carries the callbackJSON of the
+   * javascript caller.
+   *
+   * @return the response to deliver to the javascript caller
+   * @throws JsonProcessingException
+   */
+  String getClaimedResponse() throws JsonProcessingException {
+    return ResponseJsonWriter.replaceCallbackJSON(response, token, claimedRequest.callbackJSON);
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import android.net.Uri;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceResponse;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.opendatakit.webkitserver.utilities.UrlUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the files of an app folder to the WebView without going through the
+ * webkit server service.
+ * <p>
+ * A request is served only if it is a GET for a url under the webkit server
+ * content uri for the appName and it names a regular file within the app
+ * folder. Anything else (including range requests) returns null so that the
+ * WebView falls back to the webkit server.
+ * <p>
+ * Small files (the framework javascript, css, html) are held in a
+ * size-bounded LRU cache that is shared by all WebViews and validated
+ * against the file length and modification time. Larger files are streamed
+ * directly from disk without being buffered in memory.
+ */
+final class WebAssetLoader {
+
+  private static final String TAG = WebAssetLoader.class.getSimpleName();
+
+  /**
+   * Files no larger than this are cached in memory.
+   */
+  private static final int MAX_CACHED_FILE_SIZE = 256 * 1024;
+  /**
+   * Upper bound on the total size of the cached files.
+   */
+  private static final int MAX_CACHE_SIZE = 4 * 1024 * 1024;
+
+  private static final Map<String, String> mimeTypes = new HashMap<String, String>();
+
+  static {
+    // MimeTypeMap does not know all of these on older devices
+    mimeTypes.put("html", "text/html");
+    mimeTypes.put("htm", "text/html");
+    mimeTypes.put("js", "application/javascript");
+    mimeTypes.put("css", "text/css");
+    mimeTypes.put("json", "application/json");
+    mimeTypes.put("svg", "image/svg+xml");
+    mimeTypes.put("woff", "application/font-woff");
+    mimeTypes.put("woff2", "font/woff2");
+    mimeTypes.put("ttf", "font/ttf");
+    mimeTypes.put("csv", "text/csv");
+    mimeTypes.put("txt", "text/plain");
+  }
+
+  private static final class CachedFile {
+    final long length;
+    final long lastModified;
+    final byte[] content;
+
+    CachedFile(long length, long lastModified, byte[] content) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.content = content;
+    }
+  }
+
+  /**
+   * absolute path => content; guarded by itself. cacheSize is guarded by the same lock.
+   */
+  private static final LinkedHashMap<String, CachedFile> cache =
+      new LinkedHashMap<String, CachedFile>(32, 0.75f, true);
+  private static int cacheSize = 0;
+
+  private final String appName;
+  private final String appUrlPrefix;
+  private final String appFolderPath;
+
+  WebAssetLoader(String appName) {
+    this.appName = appName;
+    this.appUrlPrefix =
+        UrlUtils.getWebViewContentUri().buildUpon().appendPath(appName).build().toString() + "/";
+    String folder;
+    try {
+      folder = new File(ODKFileUtils.getAppFolder(appName)).getCanonicalPath();
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      folder = null;
+    }
+    this.appFolderPath = folder;
+  }
+
+  /**
+   * @param method the http method, or null if not known (GET is assumed)
+   * @param url
+   * @param hasRangeHeader
+   * @return the response, or null if the request should go to the webkit server
+   */
+  WebResourceResponse load(String method, String url, boolean hasRangeHeader) {
+    if (appFolderPath == null || url == null || !url.startsWith(appUrlPrefix) ||
+        hasRangeHeader || (method != null && !"GET".equalsIgnoreCase(method))) {
+      return null;
+    }
+    String encodedPath = UrlUtils.getPathFromUriFragment(url.substring(appUrlPrefix.length()));
+    File file;
+    try {
+      file = new File(appFolderPath, Uri.decode(encodedPath)).getCanonicalFile();
+    } catch (IOException e) {
+      return null;
+    }
+    // refuse anything that resolves outside of the app folder
+    if (!file.getPath().startsWith(appFolderPath + File.separator) || !file.isFile()) {
+      return null;
+    }
+
+    String mimeType = getMimeType(file.getName());
+    String encoding = isText(mimeType) ? "UTF-8" : null;
+    try {
+      return new WebResourceResponse(mimeType, encoding, open(file));
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).w(TAG, "unable to read " + file.getPath());
+      WebLogger.getLogger(appName).printStackTrace(e);
+      return null;
+    }
+  }
+
+  private static String getMimeType(String fileName) {
+    int idx = fileName.lastIndexOf('.');
+    String extension = (idx == -1) ? "" : fileName.substring(idx + 1).toLowerCase();
+    String mimeType = mimeTypes.get(extension);
+    if (mimeType == null) {
+      mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    }
+    return (mimeType == null) ? "application/octet-stream" : mimeType;
+  }
+
+  private static boolean isText(String mimeType) {
+    return mimeType.startsWith("text/") || mimeType.equals("application/javascript") ||
+        mimeType.equals("application/json") || mimeType.equals("image/svg+xml");
+  }
+
+  private static InputStream open(File file) throws IOException {
+    long length = file.length();
+    long lastModified = file.lastModified();
+    if (length > MAX_CACHED_FILE_SIZE) {
+      return new FileInputStream(file);
+    }
+
+    String key = file.getPath();
+    synchronized (cache) {
+      CachedFile cached = cache.get(key);
+      if (cached != null && cached.length == length && cached.lastModified == lastModified) {
+        return new ByteArrayInputStream(cached.content);
+      }
+    }
+
+    byte[] content = readFully(file, (int) length);
+    synchronized (cache) {
+      CachedFile old = cache.put(key, new CachedFile(length, lastModified, content));
+      if (old != null) {
+        cacheSize -= old.content.length;
+      }
+      cacheSize += content.length;
+      // evict the least recently used files
+      Iterator<CachedFile> iter = cache.values().iterator();
+      while (cacheSize > MAX_CACHE_SIZE && iter.hasNext()) {
+        cacheSize -= iter.next().content.length;
+        iter.remove();
+      }
+    }
+    return new ByteArrayInputStream(content);
+  }
+
+  private static byte[] readFully(File file, int length) throws IOException {
+    byte[] content = new byte[length];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < length) {
+        int count = in.read(content, offset, length - offset);
+        if (count < 0) {
+          throw new IOException("file truncated while reading: " + file.getPath());
+        }
+        offset += count;
+      }
+    } finally {
+      in.close();
+    }
+    return content;
+  }
+}
@@ -4,6 +4,8 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -16,8 +18,12 @@ import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.properties.DynamicPropertiesCallback;
 import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.properties.PropertyManager;
+import org.opendatakit.utilities.ODKFileUtils;
 import org.opendatakit.views.ODKWebView;
 
+import java.io.IOException;
+import java.io.StringWriter;
+
 /**
  * Consolidate processing for doAction implementation and onActivityResult
  *
@@ -256,26 +262,41 @@ public class DoActionUtils {
             return;
          }
             Bundle b = (intent == null) ? null : intent.getExtras();
-         JSONObject val = (b == null) ? null : SerializationUtils.convertFromBundle(activity.getAppName(), b);
-         JSONObject jsonValue = new JSONObject();
-         jsonValue.put("status", resultCode);
-         if ( val != null ) {
-            jsonValue.put("result", val);
-         }
-         JSONObject result = new JSONObject();
+
          // de-tokenize the dispatchStruct and store it in the result
          // this means there is less parsing in JS
+         JsonNode dispatchStruct = null;
          try {
-            JSONTokener tokener = new JSONTokener(dispatchStructJSONstring);
-            result.put("dispatchStruct", tokener.nextValue());
-         } catch ( JSONException e ) {
+            dispatchStruct = ODKFileUtils.mapper.readTree(dispatchStructJSONstring);
+         } catch ( IOException e ) {
             WebLogger.getLogger(activity.getAppName()).printStackTrace(e);
-            result.put("dispatchStruct", JSONObject.NULL);
          }
-         result.put("action",  actionWaitingForData);
-         result.put("jsonValue", jsonValue);
 
-         String actionOutcome = result.toString();
+         // stream the result bundle directly into the outcome JSON
+         StringWriter writer = new StringWriter();
+         JsonGenerator g = ODKFileUtils.mapper.getFactory().createGenerator(writer);
+         try {
+            g.writeStartObject();
+            g.writeFieldName("dispatchStruct");
+            if ( dispatchStruct == null ) {
+               g.writeNull();
+            } else {
+               g.writeTree(dispatchStruct);
+            }
+            g.writeStringField("action", actionWaitingForData);
+            g.writeObjectFieldStart("jsonValue");
+            g.writeNumberField("status", resultCode);
+            if ( b != null ) {
+               g.writeFieldName("result");
+               SerializationUtils.writeBundle(activity.getAppName(), g, b);
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+         } finally {
+            g.close();
+         }
+
+         String actionOutcome = writer.toString();
          activity.queueActionOutcome(actionOutcome);
 
          if (view != null) {
@@ -15,11 +15,21 @@
 package org.opendatakit.webkitserver.utilities;
 
 import android.os.Bundle;
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -27,6 +37,11 @@ import java.util.Set;
  * Utilities for converting a Bundle to and from a JSON serialization for
  * transmission to javascript inside a WebKit.
  *
+ * The streaming variants ({@link #writeBundle}, {@link #convertFromBundleToString}
+ * and {@link #convertToBundle(String, MacroStringExpander)}) read and write the
+ * JSON directly with Jackson and do not box the elements of primitive arrays.
+ * They produce the same results as the JSONObject-based methods.
+ *
  * @author mitchellsundt@gmail.com
  *
  */
@@ -241,4 +256,338 @@ public class SerializationUtils {
     return b;
   }
 
+  /**
+   * Serialize the Bundle to a JSON string.
+   *
+   * @param appName
+   * @param b
+   * @return JSON serialization of the bundle
+   * @throws IOException
+   */
+  public static String convertFromBundleToString(String appName, Bundle b) throws IOException {
+    StringWriter writer = new StringWriter();
+    JsonGenerator g = ODKFileUtils.mapper.getFactory().createGenerator(writer);
+    try {
+      writeBundle(appName, g, b);
+    } finally {
+      g.close();
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Write the Bundle as a JSON object to the generator.
+   *
+   * @param appName
+   * @param g
+   * @param b
+   * @throws IOException
+   */
+  public static void writeBundle(String appName, JsonGenerator g, Bundle b) throws IOException {
+    g.writeStartObject();
+    Set<String> keys = b.keySet();
+    for (String key : keys) {
+      Object o = b.get(key);
+      if (o == null) {
+        g.writeNullField(key);
+      } else if (o.getClass().isArray()) {
+        Class<?> t = o.getClass().getComponentType();
+        if (t.equals(byte.class)) {
+          WebLogger.getLogger(appName).w(tag, "byte array returned -- ignoring");
+          continue;
+        }
+        g.writeArrayFieldStart(key);
+        if (t.equals(long.class)) {
+          long[] a = (long[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            g.writeNumber(a[i]);
+          }
+        } else if (t.equals(int.class)) {
+          int[] a = (int[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            g.writeNumber(a[i]);
+          }
+        } else if (t.equals(double.class)) {
+          double[] a = (double[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            g.writeNumber(a[i]);
+          }
+        } else if (t.equals(boolean.class)) {
+          boolean[] a = (boolean[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            g.writeBoolean(a[i]);
+          }
+        } else if (t.equals(Long.class)) {
+          Long[] a = (Long[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            if (a[i] == null) {
+              g.writeNull();
+            } else {
+              g.writeNumber(a[i]);
+            }
+          }
+        } else if (t.equals(Integer.class)) {
+          Integer[] a = (Integer[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            if (a[i] == null) {
+              g.writeNull();
+            } else {
+              g.writeNumber(a[i]);
+            }
+          }
+        } else if (t.equals(Double.class)) {
+          Double[] a = (Double[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            if (a[i] == null) {
+              g.writeNull();
+            } else {
+              g.writeNumber(a[i]);
+            }
+          }
+        } else if (t.equals(Boolean.class)) {
+          Boolean[] a = (Boolean[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            if (a[i] == null) {
+              g.writeNull();
+            } else {
+              g.writeBoolean(a[i]);
+            }
+          }
+        } else if (t.equals(String.class)) {
+          String[] a = (String[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            g.writeString(a[i]);
+          }
+        } else if (t.equals(Bundle.class) || Bundle.class.isAssignableFrom(t)) {
+          Bundle[] a = (Bundle[]) o;
+          for (int i = 0; i < a.length; ++i) {
+            if (a[i] == null) {
+              g.writeNull();
+            } else {
+              writeBundle(appName, g, a[i]);
+            }
+          }
+        } else {
+          throw new JsonGenerationException("unrecognized class");
+        }
+        g.writeEndArray();
+      } else if (o instanceof Bundle) {
+        g.writeFieldName(key);
+        writeBundle(appName, g, (Bundle) o);
+      } else if (o instanceof String) {
+        g.writeStringField(key, b.getString(key));
+      } else if (o instanceof Boolean) {
+        g.writeBooleanField(key, b.getBoolean(key));
+      } else if (o instanceof Integer) {
+        g.writeNumberField(key, b.getInt(key));
+      } else if (o instanceof Long) {
+        g.writeNumberField(key, b.getLong(key));
+      } else if (o instanceof Double) {
+        g.writeNumberField(key, b.getDouble(key));
+      }
+    }
+    g.writeEndObject();
+  }
+
+  /**
+   * Parse the JSON serialization of an object into a Bundle.
+   *
+   * @param jsonMap  JSON serialization of an object
+   * @param expander applied to all string values (but not to string array elements)
+   * @return the bundle
+   * @throws IOException if the JSON is not an object or cannot be converted
+   */
+  public static Bundle convertToBundle(String jsonMap, final MacroStringExpander expander)
+      throws IOException {
+    JsonParser p = ODKFileUtils.mapper.getFactory().createParser(jsonMap);
+    try {
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Expected a JSON object", p.getCurrentLocation());
+      }
+      return readBundle(p, expander);
+    } finally {
+      p.close();
+    }
+  }
+
+  /**
+   * Read an object into a Bundle. The parser is positioned on the START_OBJECT
+   * token and is left on the matching END_OBJECT token.
+   */
+  private static Bundle readBundle(JsonParser p, MacroStringExpander expander)
+      throws IOException {
+    Bundle b = new Bundle();
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String key = p.getCurrentName();
+      JsonToken t = p.nextToken();
+      switch (t) {
+      case VALUE_NULL:
+        break;
+      case START_OBJECT:
+        b.putBundle(key, readBundle(p, expander));
+        break;
+      case START_ARRAY:
+        readArray(p, expander, b, key);
+        break;
+      case VALUE_STRING: {
+        String v = p.getText();
+        if (expander != null) {
+          v = expander.expandString(v);
+        }
+        b.putString(key, v);
+        break;
+      }
+      case VALUE_TRUE:
+      case VALUE_FALSE:
+        b.putBoolean(key, p.getBooleanValue());
+        break;
+      case VALUE_NUMBER_INT:
+        if (p.getNumberType() == JsonParser.NumberType.INT) {
+          b.putInt(key, p.getIntValue());
+        } else {
+          b.putLong(key, p.getValueAsLong());
+        }
+        break;
+      case VALUE_NUMBER_FLOAT:
+        b.putDouble(key, p.getDoubleValue());
+        break;
+      default:
+        // ignore embedded objects
+        p.skipChildren();
+        break;
+      }
+    }
+    return b;
+  }
+
+  /**
+   * Read an array into the Bundle. The parser is positioned on the START_ARRAY
+   * token and is left on the matching END_ARRAY token.
+   *
+   * Only non-empty arrays are written into the Bundle. The first non-null
+   * element defines the data type for the array. Primitive arrays are
+   * accumulated without boxing their elements.
+   *
+   * @throws JsonParseException if an element cannot be converted to the
+   *                            data type of the array
+   */
+  private static void readArray(JsonParser p, MacroStringExpander expander, Bundle b, String key)
+      throws IOException {
+    int leadingNulls = 0;
+    JsonToken t = p.nextToken();
+    while (t == JsonToken.VALUE_NULL) {
+      ++leadingNulls;
+      t = p.nextToken();
+    }
+    if (t == JsonToken.END_ARRAY) {
+      return;
+    }
+    int n = leadingNulls;
+    switch (t) {
+    case START_OBJECT: {
+      ArrayList<Bundle> va = new ArrayList<Bundle>();
+      for (int j = 0; j < leadingNulls; ++j) {
+        va.add(null);
+      }
+      for (; t != JsonToken.END_ARRAY; t = p.nextToken()) {
+        if (t == JsonToken.VALUE_NULL) {
+          va.add(null);
+        } else if (t == JsonToken.START_OBJECT) {
+          va.add(readBundle(p, expander));
+        } else {
+          throw new JsonParseException("Expected an object array element",
+              p.getCurrentLocation());
+        }
+      }
+      b.putParcelableArray(key, va.toArray(new Bundle[va.size()]));
+      break;
+    }
+    case START_ARRAY:
+      throw new JsonParseException("Unable to convert nested arrays", p.getCurrentLocation());
+    case VALUE_STRING: {
+      ArrayList<String> va = new ArrayList<String>();
+      for (int j = 0; j < leadingNulls; ++j) {
+        va.add(null);
+      }
+      for (; t != JsonToken.END_ARRAY; t = p.nextToken()) {
+        if (t != JsonToken.VALUE_NULL && !t.isScalarValue()) {
+          throw unexpectedElement(p, "string");
+        }
+        va.add((t == JsonToken.VALUE_NULL) ? null : p.getValueAsString());
+      }
+      b.putStringArray(key, va.toArray(new String[va.size()]));
+      break;
+    }
+    case VALUE_TRUE:
+    case VALUE_FALSE: {
+      boolean[] va = new boolean[leadingNulls + 16];
+      for (; t != JsonToken.END_ARRAY; t = p.nextToken()) {
+        if (t != JsonToken.VALUE_NULL && t != JsonToken.VALUE_TRUE &&
+            t != JsonToken.VALUE_FALSE) {
+          throw unexpectedElement(p, "boolean");
+        }
+        if (n == va.length) {
+          va = Arrays.copyOf(va, 2 * n);
+        }
+        va[n++] = (t == JsonToken.VALUE_TRUE);
+      }
+      b.putBooleanArray(key, Arrays.copyOf(va, n));
+      break;
+    }
+    case VALUE_NUMBER_INT:
+      if (p.getNumberType() == JsonParser.NumberType.INT) {
+        int[] va = new int[leadingNulls + 16];
+        for (; t != JsonToken.END_ARRAY; t = p.nextToken()) {
+          if (t != JsonToken.VALUE_NULL && !t.isNumeric()) {
+            throw unexpectedElement(p, "integer");
+          }
+          if (n == va.length) {
+            va = Arrays.copyOf(va, 2 * n);
+          }
+          va[n++] = (t == JsonToken.VALUE_NULL) ? 0 : p.getValueAsInt();
+        }
+        b.putIntArray(key, Arrays.copyOf(va, n));
+      } else {
+        long[] va = new long[leadingNulls + 16];
+        for (; t != JsonToken.END_ARRAY; t = p.nextToken()) {
+          if (t != JsonToken.VALUE_NULL && !t.isNumeric()) {
+            throw unexpectedElement(p, "long");
+          }
+          if (n == va.length) {
+            va = Arrays.copyOf(va, 2 * n);
+          }
+          va[n++] = (t == JsonToken.VALUE_NULL) ? 0L : p.getValueAsLong();
+        }
+        b.putLongArray(key, Arrays.copyOf(va, n));
+      }
+      break;
+    case VALUE_NUMBER_FLOAT: {
+      double[] va = new double[leadingNulls + 16];
+      Arrays.fill(va, 0, leadingNulls, Double.NaN);
+      for (; t != JsonToken.END_ARRAY; t = p.nextToken()) {
+        if (t != JsonToken.VALUE_NULL && !t.isNumeric()) {
+          throw unexpectedElement(p, "double");
+        }
+        if (n == va.length) {
+          va = Arrays.copyOf(va, 2 * n);
+        }
+        va[n++] = (t == JsonToken.VALUE_NULL) ? Double.NaN : p.getValueAsDouble();
+      }
+      b.putDoubleArray(key, Arrays.copyOf(va, n));
+      break;
+    }
+    default:
+      // unsupported element type -- skip the remainder of the array
+      for (; t != JsonToken.END_ARRAY; t = p.nextToken()) {
+        p.skipChildren();
+      }
+      break;
+    }
+  }
+
+  private static JsonParseException unexpectedElement(JsonParser p, String type) {
+    return new JsonParseException("Unexpected " + p.getCurrentToken() +
+        " element in an array of " + type, p.getCurrentLocation());
+  }
+
 }
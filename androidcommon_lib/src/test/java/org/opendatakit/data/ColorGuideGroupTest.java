@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.data;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ColorGuideGroupTest {
+
+  private static final String APP_NAME = "default";
+  private static final String TABLE_ID = "table";
+  private static final String COLOR_COLUMN = "color";
+  private static final int FOREGROUND = 0xff000000;
+  private static final int BACKGROUND = 0xffff0000;
+
+  private OrderedColumns columns;
+  private BaseTable table;
+  private ColorRuleGroup colorRules;
+
+  @Before
+  public void setUp() throws ServicesAvailabilityException {
+    columns = new OrderedColumns(APP_NAME, TABLE_ID, Collections.singletonList(
+        new Column(COLOR_COLUMN, COLOR_COLUMN, ElementDataType.string.name(), "[]")));
+
+    String[] elementKeys = { DataTableColumns.ID, COLOR_COLUMN };
+    Map<String, Integer> elementKeyToIndex = new HashMap<String, Integer>();
+    for (int i = 0; i < elementKeys.length; ++i) {
+      elementKeyToIndex.put(elementKeys[i], i);
+    }
+    table = new BaseTable(new String[] { DataTableColumns.ID }, elementKeys, elementKeyToIndex,
+        null);
+
+    // a table with no color rules in its KVS; the rule is supplied below
+    UserDbInterface dbInterface = (UserDbInterface) Proxy.newProxyInstance(
+        UserDbInterface.class.getClassLoader(), new Class<?>[] { UserDbInterface.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return method.invoke(this, args);
+            }
+            if (!method.getName().equals("getTableMetadata")) {
+              throw new AssertionError("unexpected call: " + method.getName());
+            }
+            return new TableMetaDataEntries(TABLE_ID, "rev1");
+          }
+        });
+    List<String> adminColumns = DataTableColumns.getAdminColumns();
+    colorRules = ColorRuleGroup.getTableColorRuleGroup(dbInterface, APP_NAME, null, TABLE_ID,
+        adminColumns.toArray(new String[adminColumns.size()]));
+    colorRules.replaceColorRuleList(Collections.singletonList(
+        new ColorRule("rule", COLOR_COLUMN, ColorRule.RuleType.EQUAL, "red", FOREGROUND,
+            BACKGROUND)));
+  }
+
+  private TypedRow row(String rowId, String color) {
+    return new TypedRow(new Row(new String[] { rowId, color }, table), columns);
+  }
+
+  @Test
+  public void testChangedRowsAreRecolored() {
+    ColorGuideGroup group = new ColorGuideGroup(colorRules, null);
+
+    group.updateColorGuides(columns, Arrays.asList(row("r1", "red"), row("r2", "blue")));
+
+    ColorGuide guide = group.getColorGuideForRowId("r1");
+    assertEquals(FOREGROUND, guide.getForeground());
+    assertEquals(BACKGROUND, guide.getBackground());
+    // a row matching no rule is recorded with a null guide, as the constructor does
+    assertTrue(group.getAllColorGuides().containsKey("r2"));
+    assertNull(group.getColorGuideForRowId("r2"));
+
+    group.updateColorGuides(columns, Arrays.asList(row("r1", "blue"), row("r2", "red")));
+
+    assertNull(group.getColorGuideForRowId("r1"));
+    assertSame(guide, group.getColorGuideForRowId("r2"));
+  }
+
+  @Test
+  public void testOtherRowsAreUntouched() {
+    ColorGuideGroup group = new ColorGuideGroup(colorRules, null);
+    group.updateColorGuides(columns, Arrays.asList(row("r1", "red"), row("r2", "red")));
+    ColorGuide guide = group.getColorGuideForRowId("r1");
+
+    group.updateColorGuides(columns, Collections.singletonList(row("r2", "blue")));
+
+    assertSame(guide, group.getColorGuideForRowId("r1"));
+    assertNull(group.getColorGuideForRowId("r2"));
+    assertEquals(2, group.getAllColorGuides().size());
+  }
+
+  @Test
+  public void testRowWithoutIdIsSkipped() {
+    ColorGuideGroup group = new ColorGuideGroup(colorRules, null);
+
+    group.updateColorGuides(columns, Collections.singletonList(row(null, "red")));
+
+    assertTrue(group.getAllColorGuides().isEmpty());
+  }
+
+  @Test
+  public void testDeletedRowIsRemoved() {
+    ColorGuideGroup group = new ColorGuideGroup(colorRules, null);
+    group.updateColorGuides(columns, Arrays.asList(row("r1", "red"), row("r2", "red")));
+
+    group.removeColorGuide("r1");
+
+    assertFalse(group.getAllColorGuides().containsKey("r1"));
+    assertTrue(group.getAllColorGuides().containsKey("r2"));
+  }
+
+  @Test
+  public void testGroupWithoutRulesIgnoresUpdates() {
+    ColorGuideGroup group = new ColorGuideGroup(null, null);
+
+    group.updateColorGuides(columns, Collections.singletonList(row("r1", "red")));
+
+    assertTrue(group.getAllColorGuides().isEmpty());
+  }
+}
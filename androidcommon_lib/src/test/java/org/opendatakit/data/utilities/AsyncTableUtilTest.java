@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.data.utilities;
+
+import org.junit.Test;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.database.service.UserDbInterface;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncTableUtilTest {
+
+  private static final String APP_NAME = "default";
+  private static final String TABLE_ID = "table";
+  private static final long TIMEOUT_SECONDS = 10L;
+
+  /**
+   * Must match AsyncTableUtil: MAX_POOL_SIZE running plus MAX_QUEUED_REQUESTS waiting.
+   */
+  private static final int CAPACITY = 4 + 64;
+
+  /**
+   * A database interface whose openDatabase() waits for the gate and then
+   * returns a null handle, or throws the given exception. Every other call
+   * fails the test.
+   */
+  private static UserDbInterface database(final CountDownLatch gate,
+      final RuntimeException openFailure) {
+    return (UserDbInterface) Proxy.newProxyInstance(UserDbInterface.class.getClassLoader(),
+        new Class<?>[] { UserDbInterface.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return method.invoke(this, args);
+            }
+            if (!method.getName().equals("openDatabase")) {
+              throw new AssertionError("unexpected call: " + method.getName());
+            }
+            if (gate != null) {
+              gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            if (openFailure != null) {
+              throw openFailure;
+            }
+            return null;
+          }
+        });
+  }
+
+  private static class RecordingCallback<T> implements AsyncTableUtil.Callback<T> {
+    final CountDownLatch completed = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicReference<T> result = new AtomicReference<T>();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    @Override
+    public void onSuccess(T result) {
+      this.result.set(result);
+      calls.incrementAndGet();
+      completed.countDown();
+    }
+
+    @Override
+    public void onFailure(Throwable t) {
+      failure.set(t);
+      calls.incrementAndGet();
+      completed.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+  }
+
+  private static Throwable causeOf(Future<?> future) throws InterruptedException {
+    try {
+      future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return e.getCause();
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+    fail("expected the future to fail");
+    return null;
+  }
+
+  @Test
+  public void testResultIsReportedToFutureAndCallback() throws Exception {
+    AsyncTableUtil util = new AsyncTableUtil();
+    RecordingCallback<String> callback = new RecordingCallback<String>();
+
+    Future<String> future = util.submit(database(null, null), APP_NAME,
+        new AsyncTableUtil.DbCallable<String>() {
+          @Override
+          public String call(UserDbInterface dbInterface, DbHandle db) {
+            assertNull(db);
+            return "result";
+          }
+        }, callback);
+
+    assertEquals("result", future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    callback.await();
+    assertEquals("result", callback.result.get());
+    assertNull(callback.failure.get());
+    assertEquals(1, callback.calls.get());
+  }
+
+  @Test
+  public void testLookupFailureIsTheCause() throws Exception {
+    AsyncTableUtil util = new AsyncTableUtil();
+    RecordingCallback<String> callback = new RecordingCallback<String>();
+    final IllegalStateException failure = new IllegalStateException("lookup failed");
+
+    Future<String> future = util.submit(database(null, null), APP_NAME,
+        new AsyncTableUtil.DbCallable<String>() {
+          @Override
+          public String call(UserDbInterface dbInterface, DbHandle db) {
+            throw failure;
+          }
+        }, callback);
+
+    assertSame(failure, causeOf(future));
+    callback.await();
+    assertSame(failure, callback.failure.get());
+    assertNull(callback.result.get());
+    assertEquals(1, callback.calls.get());
+  }
+
+  @Test
+  public void testOpenDatabaseFailureIsTheCause() throws Exception {
+    AsyncTableUtil util = new AsyncTableUtil();
+    IllegalStateException failure = new IllegalStateException("no database");
+
+    Future<String> future = util.submit(database(null, failure), APP_NAME,
+        new AsyncTableUtil.DbCallable<String>() {
+          @Override
+          public String call(UserDbInterface dbInterface, DbHandle db) {
+            throw new AssertionError("must not run without a database");
+          }
+        });
+
+    assertSame(failure, causeOf(future));
+  }
+
+  @Test
+  public void testRequestBeyondTheQueueIsRejectedWithoutRunning() throws Exception {
+    AsyncTableUtil util = new AsyncTableUtil();
+    CountDownLatch gate = new CountDownLatch(1);
+    UserDbInterface dbInterface = database(gate, null);
+    final AtomicInteger ran = new AtomicInteger();
+    AsyncTableUtil.DbCallable<Integer> counter = new AsyncTableUtil.DbCallable<Integer>() {
+      @Override
+      public Integer call(UserDbInterface dbInterface, DbHandle db) {
+        return ran.incrementAndGet();
+      }
+    };
+
+    List<Future<Integer>> accepted = new ArrayList<Future<Integer>>();
+    try {
+      for (int i = 0; i < CAPACITY; ++i) {
+        accepted.add(util.submit(dbInterface, APP_NAME, counter));
+      }
+
+      RecordingCallback<Integer> callback = new RecordingCallback<Integer>();
+      Future<Integer> rejected = util.submit(dbInterface, APP_NAME, counter, callback);
+
+      // the rejection is reported on the submitting thread, before anything runs
+      assertTrue(rejected.isDone());
+      assertEquals(0, callback.completed.getCount());
+      assertEquals(1, callback.calls.get());
+      assertEquals(0, ran.get());
+      assertTrue(callback.failure.get() instanceof RejectedExecutionException);
+      assertTrue(causeOf(rejected) instanceof RejectedExecutionException);
+    } finally {
+      gate.countDown();
+    }
+
+    for (Future<Integer> future : accepted) {
+      future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+    assertEquals(CAPACITY, ran.get());
+  }
+
+  @Test
+  public void testSpreadsheetSettingsFailWhenTheLookupsFail() throws Exception {
+    AsyncTableUtil util = new AsyncTableUtil();
+    IllegalStateException failure = new IllegalStateException("no database");
+    RecordingCallback<AsyncTableUtil.SpreadsheetSettings> callback =
+        new RecordingCallback<AsyncTableUtil.SpreadsheetSettings>();
+
+    Future<AsyncTableUtil.SpreadsheetSettings> future = util
+        .getSpreadsheetSettings("en", database(null, failure), APP_NAME, TABLE_ID, callback);
+
+    assertSame(failure, causeOf(future));
+    callback.await();
+    assertSame(failure, callback.failure.get());
+    assertEquals(1, callback.calls.get());
+  }
+
+  @Test
+  public void testCancellingSpreadsheetSettingsCancelsTheLookups() throws Exception {
+    AsyncTableUtil util = new AsyncTableUtil();
+    CountDownLatch gate = new CountDownLatch(1);
+    RecordingCallback<AsyncTableUtil.SpreadsheetSettings> callback =
+        new RecordingCallback<AsyncTableUtil.SpreadsheetSettings>();
+
+    Future<AsyncTableUtil.SpreadsheetSettings> future;
+    try {
+      future = util.getSpreadsheetSettings("en", database(gate, null), APP_NAME, TABLE_ID,
+          callback);
+      assertTrue(future.cancel(false));
+    } finally {
+      gate.countDown();
+    }
+
+    assertTrue(future.isCancelled());
+    callback.await();
+    assertTrue(callback.failure.get() instanceof CancellationException);
+    assertEquals(1, callback.calls.get());
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.data.utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.exception.ServicesAvailabilityException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChoiceListCacheTest {
+
+  private static final String APP_NAME = "default";
+  private static final String CHOICES =
+      "[{\"data_value\":\"y\",\"display\":{\"title\":{\"text\":{\"default\":\"Yes\"}}}}]";
+
+  /**
+   * choiceListId => JSON returned by getChoiceList()
+   */
+  private final Map<String, String> database = new HashMap<String, String>();
+  /**
+   * The choiceListIds passed to getChoiceList(), in order.
+   */
+  private final List<String> lookups = new ArrayList<String>();
+
+  private UserDbInterface dbInterface;
+  private ChoiceListCache cache;
+
+  @Before
+  public void setUp() {
+    dbInterface = (UserDbInterface) Proxy.newProxyInstance(
+        UserDbInterface.class.getClassLoader(), new Class<?>[] { UserDbInterface.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return method.invoke(this, args);
+            }
+            if (!method.getName().equals("getChoiceList")) {
+              throw new AssertionError("unexpected call: " + method.getName());
+            }
+            String choiceListId = (String) args[2];
+            lookups.add(choiceListId);
+            return database.get(choiceListId);
+          }
+        });
+    cache = new ChoiceListCache();
+  }
+
+  private String getJSON(String appName, String choiceListId)
+      throws ServicesAvailabilityException {
+    return cache.getChoiceListJSON(dbInterface, appName, null, choiceListId);
+  }
+
+  @Test
+  public void testChoiceListIsReadOnce() throws ServicesAvailabilityException {
+    database.put("id1", CHOICES);
+
+    assertEquals(CHOICES, getJSON(APP_NAME, "id1"));
+    assertEquals(CHOICES, getJSON(APP_NAME, "id1"));
+    assertEquals(1, cache.getParsedChoiceList(dbInterface, APP_NAME, null, "id1").size());
+
+    assertEquals(1, lookups.size());
+  }
+
+  @Test
+  public void testMissingChoiceListIsLookedUpAgain() throws ServicesAvailabilityException {
+    assertNull(getJSON(APP_NAME, "id1"));
+    database.put("id1", " ");
+    assertTrue(cache.getParsedChoiceList(dbInterface, APP_NAME, null, "id1").isEmpty());
+    database.put("id1", CHOICES);
+
+    assertEquals(CHOICES, getJSON(APP_NAME, "id1"));
+    assertEquals(CHOICES, getJSON(APP_NAME, "id1"));
+
+    assertEquals(3, lookups.size());
+  }
+
+  @Test
+  public void testPutAvoidsTheLookup() throws ServicesAvailabilityException {
+    cache.put(APP_NAME, "id1", CHOICES);
+
+    assertEquals(CHOICES, getJSON(APP_NAME, "id1"));
+    assertTrue(lookups.isEmpty());
+  }
+
+  @Test
+  public void testEntriesAreScopedByAppName() throws ServicesAvailabilityException {
+    cache.put("other", "id1", "[]");
+    database.put("id1", CHOICES);
+
+    assertEquals(CHOICES, getJSON(APP_NAME, "id1"));
+    assertEquals("[]", getJSON("other", "id1"));
+    assertEquals(1, lookups.size());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testParsedChoiceListIsADeepCopy() throws ServicesAvailabilityException {
+    database.put("id1", CHOICES);
+
+    ArrayList<Map<String, Object>> first =
+        cache.getParsedChoiceList(dbInterface, APP_NAME, null, "id1");
+    first.get(0).put("data_value", "n");
+    ((Map<String, Object>) first.get(0).get("display")).clear();
+    first.add(new HashMap<String, Object>());
+
+    ArrayList<Map<String, Object>> second =
+        cache.getParsedChoiceList(dbInterface, APP_NAME, null, "id1");
+    assertEquals(1, second.size());
+    assertEquals("y", second.get(0).get("data_value"));
+    Map<String, Object> display = (Map<String, Object>) second.get(0).get("display");
+    assertTrue(display.containsKey("title"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws ServicesAvailabilityException {
+    for (int i = 0; i <= ChoiceListCache.MAX_ENTRIES; ++i) {
+      database.put("id" + i, CHOICES);
+    }
+    for (int i = 0; i < ChoiceListCache.MAX_ENTRIES; ++i) {
+      getJSON(APP_NAME, "id" + i);
+    }
+    // touch id0 so that id1 is the least recently used
+    getJSON(APP_NAME, "id0");
+    getJSON(APP_NAME, "id" + ChoiceListCache.MAX_ENTRIES);
+    lookups.clear();
+
+    getJSON(APP_NAME, "id0");
+    assertTrue(lookups.isEmpty());
+    getJSON(APP_NAME, "id1");
+    assertEquals(1, lookups.size());
+  }
+}
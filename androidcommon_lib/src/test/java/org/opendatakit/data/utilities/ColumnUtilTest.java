@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.data.utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.database.data.TableMetaDataEntries;
+import org.opendatakit.database.service.UserDbInterface;
+import org.opendatakit.database.utilities.KeyValueStoreUtils;
+import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.utilities.LocalizationUtils;
+import org.opendatakit.utilities.NameUtil;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the per-table, per-locale cache of ColumnUtil.getLocalizedDisplayNames().
+ */
+public class ColumnUtilTest {
+
+  private static final String APP_NAME = "default";
+  private static final String TABLE_ID = "table";
+  private static final String LOCALE = "en";
+  private static final List<String> ELEMENT_KEYS = Arrays.asList("col_a", "col_b");
+
+  /**
+   * The current metadata revision of the table and the display name of col_a in it.
+   */
+  private String revId;
+  private String colADisplayName;
+  /**
+   * The revIds passed to getTableMetadata(), in order.
+   */
+  private final List<String> requestedRevIds = new ArrayList<String>();
+
+  private UserDbInterface dbInterface;
+  private ColumnUtil columnUtil;
+
+  @Before
+  public void setUp() {
+    dbInterface = (UserDbInterface) Proxy.newProxyInstance(
+        UserDbInterface.class.getClassLoader(), new Class<?>[] { UserDbInterface.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return method.invoke(this, args);
+            }
+            if (!method.getName().equals("getTableMetadata")) {
+              throw new AssertionError("unexpected call: " + method.getName());
+            }
+            assertEquals(KeyValueStoreConstants.PARTITION_COLUMN, args[3]);
+            assertNull(args[4]);
+            assertEquals(KeyValueStoreConstants.COLUMN_DISPLAY_NAME, args[5]);
+            String callerRevId = (String) args[6];
+            requestedRevIds.add(callerRevId);
+
+            TableMetaDataEntries entries = new TableMetaDataEntries(TABLE_ID, revId);
+            if (!revId.equals(callerRevId)) {
+              // like the database service, return the entries only if they changed
+              entries.getEntries().add(KeyValueStoreUtils.buildEntry(TABLE_ID,
+                  KeyValueStoreConstants.PARTITION_COLUMN, "col_a",
+                  KeyValueStoreConstants.COLUMN_DISPLAY_NAME, ElementDataType.object,
+                  colADisplayName));
+            }
+            return entries;
+          }
+        });
+    columnUtil = new ColumnUtil();
+    revId = "rev1";
+    colADisplayName = "\"Alpha\"";
+  }
+
+  private Map<String, String> getDisplayNames(String locale)
+      throws ServicesAvailabilityException {
+    return columnUtil.getLocalizedDisplayNames(locale, dbInterface, APP_NAME, null, TABLE_ID,
+        ELEMENT_KEYS);
+  }
+
+  private static String localized(String locale, String jsonDisplayName) {
+    return LocalizationUtils.getLocalizedDisplayName(APP_NAME, TABLE_ID, locale,
+        jsonDisplayName);
+  }
+
+  @Test
+  public void testNamesAreLocalizedWithElementKeyDefault() throws ServicesAvailabilityException {
+    Map<String, String> names = getDisplayNames(LOCALE);
+
+    assertEquals(2, names.size());
+    assertEquals(localized(LOCALE, "\"Alpha\""), names.get("col_a"));
+    // col_b has no display name entry
+    assertEquals(localized(LOCALE,
+        NameUtil.normalizeDisplayName(NameUtil.constructSimpleDisplayName("col_b"))),
+        names.get("col_b"));
+  }
+
+  @Test
+  public void testCachedNamesAreReusedWhileRevIdIsUnchanged()
+      throws ServicesAvailabilityException {
+    Map<String, String> first = getDisplayNames(LOCALE);
+    // the service returns no entries for an unchanged revId
+    Map<String, String> second = getDisplayNames(LOCALE);
+
+    assertEquals(first, second);
+    assertEquals(Arrays.asList(null, "rev1"), requestedRevIds);
+  }
+
+  @Test
+  public void testCacheIsInvalidatedWhenRevIdChanges() throws ServicesAvailabilityException {
+    getDisplayNames(LOCALE);
+    revId = "rev2";
+    colADisplayName = "\"Apple\"";
+
+    Map<String, String> names = getDisplayNames(LOCALE);
+
+    assertEquals(localized(LOCALE, "\"Apple\""), names.get("col_a"));
+    assertEquals(Arrays.asList(null, "rev1"), requestedRevIds);
+
+    getDisplayNames(LOCALE);
+    assertEquals(Arrays.asList(null, "rev1", "rev2"), requestedRevIds);
+  }
+
+  @Test
+  public void testCacheIsPerLocale() throws ServicesAvailabilityException {
+    getDisplayNames(LOCALE);
+    getDisplayNames("fr");
+    getDisplayNames("fr");
+
+    assertEquals(Arrays.asList(null, null, "rev1"), requestedRevIds);
+  }
+
+  @Test
+  public void testResultIsACopyForTheRequestedColumns() throws ServicesAvailabilityException {
+    Map<String, String> names = getDisplayNames(LOCALE);
+    names.clear();
+
+    Map<String, String> colAOnly = columnUtil.getLocalizedDisplayNames(LOCALE, dbInterface,
+        APP_NAME, null, TABLE_ID, Arrays.asList("col_a"));
+
+    assertEquals(1, colAOnly.size());
+    assertEquals(localized(LOCALE, "\"Alpha\""), colAOnly.get("col_a"));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.data.utilities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.utilities.StaticStateManipulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SpreadsheetLayoutTest {
+
+  private static final String APP_NAME = "default";
+  private static final int FONT_SIZE = 14;
+  private static final int DEFAULT_WIDTH =
+      LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH;
+
+  private OrderedColumns columns;
+  private TableUtil.TableColumns tableColumns;
+
+  @Before
+  public void setUp() {
+    StaticStateManipulator.get().reset();
+    columns = TableSettingsTest.columns("a", "b", "c", "d");
+    tableColumns = new TableUtil.TableColumns(columns, new String[0], displayNames("en"));
+  }
+
+  private static Map<String, String> displayNames(String locale) {
+    Map<String, String> names = new HashMap<String, String>();
+    for (String elementKey : Arrays.asList("a", "b", "c", "d")) {
+      names.put(elementKey, locale + ":" + elementKey);
+    }
+    return names;
+  }
+
+  /**
+   * Column order c, (stale x), a, b, d with d as the index column and widths
+   * c=200, a=100, b=50, so the scrolling columns are c, a, b at 0, 200, 300
+   * and the total width is 350.
+   */
+  private static TableSettings settings(String revId, KeyValueStoreEntry... extra) {
+    List<KeyValueStoreEntry> entries = new ArrayList<KeyValueStoreEntry>();
+    entries.add(TableSettingsTest.tableEntry(KeyValueStoreConstants.TABLE_COL_ORDER,
+        ElementDataType.array, "[\"c\",\"x\",\"a\",\"b\",\"d\"]"));
+    entries.add(TableSettingsTest.tableEntry(KeyValueStoreConstants.TABLE_INDEX_COL,
+        ElementDataType.string, "d"));
+    entries.add(TableSettingsTest.columnWidth("c", "200"));
+    entries.add(TableSettingsTest.columnWidth("a", "100"));
+    entries.add(TableSettingsTest.columnWidth("b", "50"));
+    entries.add(TableSettingsTest.fontSize(FONT_SIZE));
+    entries.addAll(Arrays.asList(extra));
+    return new TableSettings(APP_NAME, "my_table", revId, entries);
+  }
+
+  private SpreadsheetLayout layout() {
+    return new SpreadsheetLayout(tableColumns, settings("rev1"), FONT_SIZE);
+  }
+
+  @Test
+  public void testColumnsFollowTheOrderWithoutIndexOrStaleEntries() {
+    SpreadsheetLayout layout = layout();
+
+    assertEquals("d", layout.getIndexColumn());
+    assertEquals("en:d", layout.getIndexColumnDisplayName());
+    assertEquals(DEFAULT_WIDTH, layout.getIndexColumnWidth());
+
+    assertEquals(3, layout.getColumnCount());
+    assertEquals("c", layout.getElementKey(0));
+    assertEquals("a", layout.getElementKey(1));
+    assertEquals("b", layout.getElementKey(2));
+    assertEquals("en:a", layout.getDisplayName(1));
+    assertEquals(100, layout.getColumnWidth(1));
+    assertEquals(200, layout.getColumnLeft(1));
+    assertEquals(300, layout.getColumnRight(1));
+    assertEquals(350, layout.getTotalWidth());
+  }
+
+  @Test
+  public void testColumnAtBoundaries() {
+    SpreadsheetLayout layout = layout();
+
+    assertEquals(-1, layout.getColumnAt(-1));
+    assertEquals(0, layout.getColumnAt(0));
+    assertEquals(0, layout.getColumnAt(199));
+    assertEquals(1, layout.getColumnAt(200));
+    assertEquals(1, layout.getColumnAt(299));
+    assertEquals(2, layout.getColumnAt(300));
+    assertEquals(2, layout.getColumnAt(349));
+    assertEquals(-1, layout.getColumnAt(350));
+  }
+
+  @Test
+  public void testVisibleColumns() {
+    SpreadsheetLayout layout = layout();
+
+    assertEquals(0, layout.getFirstVisibleColumn(-10));
+    assertEquals(1, layout.getFirstVisibleColumn(200));
+    assertEquals(-1, layout.getFirstVisibleColumn(350));
+
+    assertEquals(0, layout.getLastVisibleColumn(0, 200));
+    assertEquals(1, layout.getLastVisibleColumn(0, 201));
+    assertEquals(2, layout.getLastVisibleColumn(250, 1000));
+    assertEquals(0, layout.getLastVisibleColumn(-50, 100));
+    assertEquals(-1, layout.getLastVisibleColumn(0, 0));
+    assertEquals(-1, layout.getLastVisibleColumn(350, 100));
+  }
+
+  @Test
+  public void testEmptyLayout() {
+    TableUtil.TableColumns noColumns = new TableUtil.TableColumns(columns, new String[0],
+        new HashMap<String, String>());
+    SpreadsheetLayout layout = new SpreadsheetLayout(noColumns, settings("rev1"), FONT_SIZE);
+
+    // the index column is dropped when it has no display name
+    assertNull(layout.getIndexColumn());
+    assertEquals(0, layout.getIndexColumnWidth());
+    assertEquals(0, layout.getColumnCount());
+    assertEquals(0, layout.getTotalWidth());
+    assertEquals(-1, layout.getColumnAt(0));
+    assertEquals(-1, layout.getFirstVisibleColumn(0));
+    assertEquals(-1, layout.getLastVisibleColumn(0, 100));
+  }
+
+  @Test
+  public void testLayoutIsReusedForTheSameRevision() {
+    SpreadsheetLayout first = SpreadsheetLayout.get(null, APP_NAME, tableColumns,
+        settings("rev1"));
+    SpreadsheetLayout second = SpreadsheetLayout.get(null, APP_NAME,
+        new TableUtil.TableColumns(columns, new String[0], displayNames("en")),
+        settings("rev1"));
+
+    assertSame(first, second);
+  }
+
+  @Test
+  public void testLayoutIsRebuiltWhenTheRevisionChanges() {
+    SpreadsheetLayout first = SpreadsheetLayout.get(null, APP_NAME, tableColumns,
+        settings("rev1"));
+    SpreadsheetLayout second = SpreadsheetLayout.get(null, APP_NAME, tableColumns,
+        settings("rev2", TableSettingsTest.columnWidth("a", "10")));
+
+    assertNotSame(first, second);
+    assertEquals("rev2", second.getRevId());
+    assertEquals(10, second.getColumnWidth(1));
+    assertEquals(260, second.getTotalWidth());
+  }
+
+  @Test
+  public void testLayoutIsRebuiltWhenTheLocaleChanges() {
+    SpreadsheetLayout first = SpreadsheetLayout.get(null, APP_NAME, tableColumns,
+        settings("rev1"));
+    SpreadsheetLayout second = SpreadsheetLayout.get(null, APP_NAME,
+        new TableUtil.TableColumns(columns, new String[0], displayNames("fr")),
+        settings("rev1"));
+
+    assertNotSame(first, second);
+    assertEquals("fr:c", second.getDisplayName(0));
+  }
+
+  @Test
+  public void testLayoutIsRebuiltWhenTheFontSizeChanges() {
+    SpreadsheetLayout first = SpreadsheetLayout.get(null, APP_NAME, tableColumns,
+        settings("rev1"));
+    SpreadsheetLayout second = SpreadsheetLayout.get(null, APP_NAME, tableColumns,
+        settings("rev1", TableSettingsTest.fontSize(FONT_SIZE + 2)));
+
+    assertNotSame(first, second);
+    assertEquals(FONT_SIZE + 2, second.getFontSize());
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.data.utilities;
+
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.data.TableViewType;
+import org.opendatakit.database.LocalKeyValueStoreConstants;
+import org.opendatakit.database.data.KeyValueStoreEntry;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.utilities.KeyValueStoreUtils;
+import org.opendatakit.utilities.NameUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TableSettingsTest {
+
+  private static final String APP_NAME = "default";
+  private static final String TABLE_ID = "my_table";
+  private static final String REV_ID = "rev1";
+
+  static OrderedColumns columns(String... elementKeys) {
+    List<Column> columns = new ArrayList<Column>();
+    for (String elementKey : elementKeys) {
+      columns.add(new Column(elementKey, elementKey, ElementDataType.string.name(), "[]"));
+    }
+    return new OrderedColumns(APP_NAME, TABLE_ID, columns);
+  }
+
+  static KeyValueStoreEntry tableEntry(String key, ElementDataType type, String value) {
+    return KeyValueStoreUtils.buildEntry(TABLE_ID, KeyValueStoreConstants.PARTITION_TABLE,
+        KeyValueStoreConstants.ASPECT_DEFAULT, key, type, value);
+  }
+
+  static KeyValueStoreEntry columnWidth(String elementKey, String value) {
+    return KeyValueStoreUtils.buildEntry(TABLE_ID,
+        LocalKeyValueStoreConstants.Spreadsheet.PARTITION, elementKey,
+        LocalKeyValueStoreConstants.Spreadsheet.KEY_COLUMN_WIDTH, ElementDataType.integer, value);
+  }
+
+  static KeyValueStoreEntry fontSize(int fontSize) {
+    return KeyValueStoreUtils.buildEntry(TABLE_ID,
+        LocalKeyValueStoreConstants.Spreadsheet.PARTITION, KeyValueStoreConstants.ASPECT_DEFAULT,
+        LocalKeyValueStoreConstants.Spreadsheet.KEY_FONT_SIZE, ElementDataType.integer,
+        Integer.toString(fontSize));
+  }
+
+  private static TableSettings settings(KeyValueStoreEntry... entries) {
+    return new TableSettings(APP_NAME, TABLE_ID, REV_ID, Arrays.asList(entries));
+  }
+
+  @Test
+  public void testDefaultsWithoutEntries() {
+    TableSettings settings = settings();
+    OrderedColumns columns = columns("a", "b");
+
+    assertEquals(TABLE_ID, settings.getTableId());
+    assertEquals(REV_ID, settings.getRevId());
+    assertEquals(NameUtil.normalizeDisplayName(NameUtil.constructSimpleDisplayName(TABLE_ID)),
+        settings.getRawDisplayName());
+    assertEquals(TableUtil.DEFAULT_KEY_CURRENT_VIEW_TYPE, settings.getDefaultViewType());
+    assertNull(settings.getDetailViewFilename());
+    assertNull(settings.getListViewFilename());
+    assertNull(settings.getMapListViewFilename());
+    assertNull(settings.getMapListViewColorRuleInfo().colorType);
+    assertNull(settings.getSortColumn());
+    assertNull(settings.getSortOrder());
+    assertNull(settings.getIndexColumn());
+    assertTrue(settings.getGroupByColumns().isEmpty());
+    assertFalse(settings.isTableLocked());
+    assertTrue(settings.isUnverifiedUserCanCreate());
+
+    assertEquals(new ArrayList<String>(columns.getRetentionColumnNames()),
+        settings.getColumnOrder(columns));
+    Map<String, Integer> widths = settings.getColumnWidths(columns);
+    assertEquals(2, widths.size());
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH,
+        (int) widths.get("a"));
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH,
+        (int) widths.get("b"));
+  }
+
+  @Test
+  public void testSortOrderEntryWithoutValueIsAscending() {
+    TableSettings settings = settings(
+        tableEntry(KeyValueStoreConstants.TABLE_SORT_ORDER, ElementDataType.string, null));
+
+    assertEquals(TableUtil.DEFAULT_KEY_SORT_ORDER, settings.getSortOrder());
+  }
+
+  @Test
+  public void testUnknownViewTypeFallsBackToDefault() {
+    TableSettings settings = settings(
+        tableEntry(LocalKeyValueStoreConstants.Tables.TABLE_DEFAULT_VIEW_TYPE,
+            ElementDataType.string, "NO_SUCH_VIEW"));
+
+    assertEquals(TableUtil.DEFAULT_KEY_CURRENT_VIEW_TYPE, settings.getDefaultViewType());
+
+    settings = settings(tableEntry(LocalKeyValueStoreConstants.Tables.TABLE_DEFAULT_VIEW_TYPE,
+        ElementDataType.string, TableViewType.LIST.name()));
+
+    assertEquals(TableViewType.LIST, settings.getDefaultViewType());
+  }
+
+  @Test
+  public void testUnknownColorRuleTypeIsNone() {
+    TableSettings settings = settings(KeyValueStoreUtils.buildEntry(TABLE_ID,
+        LocalKeyValueStoreConstants.Map.PARTITION, KeyValueStoreConstants.ASPECT_DEFAULT,
+        LocalKeyValueStoreConstants.Map.KEY_COLOR_RULE_TYPE, ElementDataType.string, "bogus"));
+
+    assertEquals(LocalKeyValueStoreConstants.Map.COLOR_TYPE_NONE,
+        settings.getMapListViewColorRuleInfo().colorType);
+  }
+
+  @Test
+  public void testColumnWidthsAreClamped() {
+    int tooWide = LocalKeyValueStoreConstants.Spreadsheet.MAX_COL_WIDTH + 1;
+    TableSettings settings = settings(columnWidth("a", "0"),
+        columnWidth("b", Integer.toString(tooWide)), columnWidth("c", "120"));
+
+    Map<String, Integer> widths = settings.getColumnWidths(columns("a", "b", "c", "d"));
+
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH, (int) widths.get("a"));
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.MAX_COL_WIDTH, (int) widths.get("b"));
+    assertEquals(120, (int) widths.get("c"));
+    assertEquals(LocalKeyValueStoreConstants.Spreadsheet.DEFAULT_COL_WIDTH, (int) widths.get("d"));
+  }
+
+  @Test
+  public void testFontSizeEntryDoesNotNeedTheAppProperties() {
+    // with a font size entry, the context is never used
+    assertEquals(17, settings(fontSize(17)).getSpreadsheetViewFontSize(null, APP_NAME));
+  }
+
+  @Test
+  public void testSecurityFlagsAreRead() {
+    TableSettings settings = settings(
+        KeyValueStoreUtils.buildEntry(TABLE_ID, KeyValueStoreConstants.PARTITION_TABLE,
+            LocalKeyValueStoreConstants.TableSecurity.ASPECT,
+            LocalKeyValueStoreConstants.TableSecurity.KEY_LOCKED, ElementDataType.bool, "true"),
+        KeyValueStoreUtils.buildEntry(TABLE_ID, KeyValueStoreConstants.PARTITION_TABLE,
+            LocalKeyValueStoreConstants.TableSecurity.ASPECT,
+            LocalKeyValueStoreConstants.TableSecurity.KEY_UNVERIFIED_USER_CAN_CREATE,
+            ElementDataType.bool, "false"));
+
+    assertTrue(settings.isTableLocked());
+    assertFalse(settings.isUnverifiedUserCanCreate());
+  }
+
+  @Test
+  public void testListsAreCopies() {
+    TableSettings settings = settings(
+        tableEntry(KeyValueStoreConstants.TABLE_COL_ORDER, ElementDataType.array,
+            "[\"b\",\"a\"]"),
+        tableEntry(KeyValueStoreConstants.TABLE_GROUP_BY_COLS, ElementDataType.array,
+            "[\"a\"]"));
+    OrderedColumns columns = columns("a", "b");
+
+    ArrayList<String> order = settings.getColumnOrder(columns);
+    assertEquals(Arrays.asList("b", "a"), order);
+    order.clear();
+    assertEquals(Arrays.asList("b", "a"), settings.getColumnOrder(columns));
+
+    ArrayList<String> groupBy = settings.getGroupByColumns();
+    assertEquals(Collections.singletonList("a"), groupBy);
+    groupBy.add("b");
+    assertEquals(Collections.singletonList("a"), settings.getGroupByColumns());
+  }
+}
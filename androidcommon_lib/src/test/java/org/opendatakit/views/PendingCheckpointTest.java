@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.junit.Test;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PendingCheckpointTest {
+
+  private static final String TABLE_ID = "table";
+  private static final String ROW_ID = "row";
+  private static final String CALLER_ID = "fragment";
+
+  @Test
+  public void testLaterValuesReplaceEarlierOnes() throws IOException {
+    PendingCheckpoint pending = new PendingCheckpoint(
+        checkpoint("{\"a\":1,\"b\":\"x\"}", "rev1", "cb1", CALLER_ID));
+    pending.merge(checkpoint("{\"b\":\"y\",\"c\":null}", "rev2", "cb2", CALLER_ID));
+
+    ExecutorRequest merged = pending.toRequest();
+
+    assertEquals(ExecutorRequestType.USER_TABLE_ADD_CHECKPOINT, merged.executorRequestType);
+    assertEquals(TABLE_ID, merged.tableId);
+    assertEquals(ROW_ID, merged.rowId);
+    assertEquals(CALLER_ID, merged.callerID);
+    assertEquals("rev2", merged.metaDataRev);
+    assertEquals("cb2", merged.callbackJSON);
+
+    Map<String, Object> values = ODKFileUtils.mapper.readValue(merged.stringifiedJSON,
+        new TypeReference<HashMap<String, Object>>() {
+        });
+    assertEquals(3, values.size());
+    assertEquals(1, values.get("a"));
+    assertEquals("y", values.get("b"));
+    assertTrue(values.containsKey("c"));
+  }
+
+  @Test
+  public void testSupersededCallbacksAreKeptInOrder() throws IOException {
+    PendingCheckpoint pending = new PendingCheckpoint(checkpoint("{}", null, "cb1", CALLER_ID));
+    pending.merge(checkpoint("{}", null, null, CALLER_ID));
+    pending.merge(checkpoint("{}", null, "cb2", CALLER_ID));
+    pending.merge(checkpoint("{}", null, "cb3", CALLER_ID));
+
+    assertEquals(Arrays.asList("cb1", "cb2"), pending.getSupersededCallbacks());
+    assertEquals("cb3", pending.toRequest().callbackJSON);
+  }
+
+  @Test
+  public void testNullStringifiedJSONLeavesValuesUnchanged() throws IOException {
+    PendingCheckpoint pending = new PendingCheckpoint(checkpoint("{\"a\":1}", null, "cb1",
+        CALLER_ID));
+    pending.merge(checkpoint(null, null, "cb2", CALLER_ID));
+
+    assertEquals("{\"a\":1}", pending.toRequest().stringifiedJSON);
+    assertEquals(Collections.singletonList("cb1"), pending.getSupersededCallbacks());
+  }
+
+  @Test
+  public void testRejectsNonObjectJSON() throws IOException {
+    PendingCheckpoint pending = new PendingCheckpoint(checkpoint("{\"a\":1}", null, "cb1",
+        CALLER_ID));
+    try {
+      pending.merge(checkpoint("[1,2]", null, "cb2", CALLER_ID));
+      fail("expected an IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testKeyAndCaller() throws IOException {
+    ExecutorRequest request = checkpoint("{}", null, "cb1", CALLER_ID);
+    PendingCheckpoint pending = new PendingCheckpoint(request);
+
+    assertEquals(PendingCheckpoint.getKey(request), pending.key);
+    assertTrue(pending.isSameCaller(checkpoint("{}", null, "cb2", CALLER_ID)));
+    assertFalse(pending.isSameCaller(checkpoint("{}", null, "cb2", "other")));
+    assertFalse(pending.isSameCaller(checkpoint("{}", null, "cb2", null)));
+  }
+
+  private static ExecutorRequest checkpoint(String stringifiedJSON, String metaDataRev,
+      String callbackJSON, String callerID) {
+    return new ExecutorRequest(ExecutorRequestType.USER_TABLE_ADD_CHECKPOINT, TABLE_ID,
+        stringifiedJSON, ROW_ID, metaDataRev, callbackJSON, callerID);
+  }
+}
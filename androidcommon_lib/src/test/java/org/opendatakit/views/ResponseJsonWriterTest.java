@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.junit.Test;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ResponseJsonWriterTest {
+
+  @Test
+  public void testReplaceCallbackJSONOfSuccess() throws IOException {
+    ArrayList<List<Object>> data = new ArrayList<List<Object>>();
+    data.add(Arrays.<Object>asList("a", 1));
+    Map<String, Object> metadata = new HashMap<String, Object>();
+    metadata.put("tableId", "table");
+    String response = ResponseJsonWriter.writeSuccess("table", "{\"id\":1}", "trans", data,
+        metadata);
+
+    String replaced = ResponseJsonWriter.replaceCallbackJSON(response, "{\"id\":1}",
+        "{\"id\":2}");
+
+    Map<String, Object> original = parse(response);
+    Map<String, Object> result = parse(replaced);
+    assertEquals("{\"id\":2}", result.get("callbackJSON"));
+    result.put("callbackJSON", original.get("callbackJSON"));
+    assertEquals(original, result);
+  }
+
+  @Test
+  public void testReplaceCallbackJSONOfError() throws IOException {
+    String response = ResponseJsonWriter.writeError("cb \"1\"", null, "failed");
+
+    Map<String, Object> result = parse(ResponseJsonWriter.replaceCallbackJSON(response,
+        "cb \"1\"", "cb\n2"));
+
+    assertEquals("cb\n2", result.get("callbackJSON"));
+    assertEquals("failed", result.get("error"));
+    assertEquals(2, result.size());
+  }
+
+  @Test
+  public void testReplaceNullCallbackJSON() throws IOException {
+    String response = ResponseJsonWriter.writeError(null, null, "failed");
+
+    Map<String, Object> result = parse(ResponseJsonWriter.replaceCallbackJSON(response, null,
+        "cb"));
+
+    assertEquals("cb", result.get("callbackJSON"));
+    assertEquals("{\"callbackJSON\":null,\"error\":\"failed\"}",
+        ResponseJsonWriter.replaceCallbackJSON(ResponseJsonWriter.replaceCallbackJSON(response,
+            null, "cb"), "cb", null));
+  }
+
+  @Test
+  public void testRejectsMismatchedCallbackJSON() throws IOException {
+    String response = ResponseJsonWriter.writeError("cb1", null, "failed");
+    try {
+      ResponseJsonWriter.replaceCallbackJSON(response, "cb2", "cb3");
+      fail("expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertNull(parse(response).get("transId"));
+  }
+
+  private static Map<String, Object> parse(String response) throws IOException {
+    return ODKFileUtils.mapper.readValue(response, new TypeReference<HashMap<String, Object>>() {
+    });
+  }
+}
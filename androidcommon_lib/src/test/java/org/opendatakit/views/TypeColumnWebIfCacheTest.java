@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.views;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.data.TypedRow;
+import org.opendatakit.provider.DataTableColumns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TypeColumnWebIfCacheTest {
+
+  private static final String APP_NAME = "default";
+  private static final String TABLE_ID = "table";
+
+  private OrderedColumns columns;
+
+  private static OrderedColumns columns() {
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column("count", "count", "integer", "[]"));
+    columns.add(new Column("price", "price", "number", "[]"));
+    columns.add(new Column("done", "done", "boolean", "[]"));
+    columns.add(new Column("name", "name", "string", "[]"));
+    return new OrderedColumns(APP_NAME, TABLE_ID, columns);
+  }
+
+  private static BaseTable table(String... elementKeys) {
+    Map<String, Integer> elementKeyToIndex = new HashMap<String, Integer>();
+    for (int i = 0; i < elementKeys.length; ++i) {
+      elementKeyToIndex.put(elementKeys[i], i);
+    }
+    return new BaseTable(new String[] { DataTableColumns.ID }, elementKeys, elementKeyToIndex,
+        null);
+  }
+
+  @Before
+  public void setUp() {
+    columns = columns();
+  }
+
+  @Test
+  public void testMatchesTheSameColumnsAndResultSetColumns() {
+    TypeColumnWebIfCache cache = new TypeColumnWebIfCache(columns,
+        table(DataTableColumns.ID, "count", "name"));
+
+    assertTrue(cache.matches(columns, table(DataTableColumns.ID, "count", "name")));
+  }
+
+  @Test
+  public void testDoesNotMatchOtherColumnDefinitions() {
+    TypeColumnWebIfCache cache = new TypeColumnWebIfCache(columns,
+        table(DataTableColumns.ID, "count", "name"));
+
+    // equal content is not enough: a new OrderedColumns means the table was re-read
+    assertFalse(cache.matches(columns(), table(DataTableColumns.ID, "count", "name")));
+    assertFalse(cache.matches(null, table(DataTableColumns.ID, "count", "name")));
+  }
+
+  @Test
+  public void testDoesNotMatchOtherResultSetColumns() {
+    TypeColumnWebIfCache cache = new TypeColumnWebIfCache(columns,
+        table(DataTableColumns.ID, "count", "name"));
+
+    assertFalse(cache.matches(columns, table(DataTableColumns.ID, "name", "count")));
+    assertFalse(cache.matches(columns, table(DataTableColumns.ID, "count")));
+    assertFalse(cache.matches(columns, table(DataTableColumns.ID, "count", "name", "price")));
+    assertFalse(cache.matches(columns, null));
+  }
+
+  @Test
+  public void testCellsAreDecodedToTheWebInterfaceTypes() {
+    BaseTable table = table("count", "price", "done", "name", DataTableColumns.CONFLICT_TYPE,
+        DataTableColumns.ID, "alias");
+    TypeColumnWebIfCache cache = new TypeColumnWebIfCache(columns, table);
+    Row row = new Row(new String[] { "7", "1.5", "1", "x", "2", "uuid", "9" }, table);
+
+    assertEquals(7L, cache.getOdkDataWebIfDataByIndex(0, row));
+    assertEquals(1.5, cache.getOdkDataWebIfDataByIndex(1, row));
+    assertEquals(Boolean.TRUE, cache.getOdkDataWebIfDataByIndex(2, row));
+    assertEquals("x", cache.getOdkDataWebIfDataByIndex(3, row));
+    // of the admin columns only the conflict type is not a string
+    assertEquals(2, cache.getOdkDataWebIfDataByIndex(4, row));
+    assertEquals("uuid", cache.getOdkDataWebIfDataByIndex(5, row));
+    // result-set columns that are not table columns are strings
+    assertEquals("9", cache.getOdkDataWebIfDataByIndex(6, row));
+  }
+
+  @Test
+  public void testNullCellsStayNull() {
+    BaseTable table = table("count", "price", "done", "name");
+    TypeColumnWebIfCache cache = new TypeColumnWebIfCache(columns, table);
+    Row row = new Row(new String[] { null, null, null, null }, table);
+
+    for (int i = 0; i < table.getWidth(); ++i) {
+      assertNull(cache.getOdkDataWebIfDataByIndex(i, row));
+    }
+  }
+
+  @Test
+  public void testRowDecodingMatchesTypedRow() {
+    BaseTable table = table("count", "price", "done", "name", DataTableColumns.CONFLICT_TYPE,
+        DataTableColumns.ID, "alias");
+    TypeColumnWebIfCache cache = new TypeColumnWebIfCache(columns, table);
+    String[][] rows = {
+        { "7", "1.5", "1", "x", "2", "uuid", "9" },
+        { "-3", "0", "0", "", "0", "uuid2", null },
+        { null, null, null, null, null, null, null } };
+
+    for (String[] values : rows) {
+      Row row = new Row(values, table);
+      TypedRow typedRow = new TypedRow(row, columns);
+      for (int i = 0; i < table.getWidth(); ++i) {
+        assertEquals(cache.getOdkDataWebIfDataByIndex(i, typedRow),
+            cache.getOdkDataWebIfDataByIndex(i, row));
+        assertEquals(cache.getOdkDataWebIfDataByKey(table.getElementKey(i), typedRow),
+            cache.getOdkDataWebIfDataByIndex(i, row));
+      }
+    }
+  }
+}